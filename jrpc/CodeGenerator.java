@@ -0,0 +1,782 @@
+package jrpc;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jrpc.ProtocolBuffers.Definition;
+import jrpc.ProtocolBuffers.EnumDefinition;
+import jrpc.ProtocolBuffers.FieldKind;
+import jrpc.ProtocolBuffers.FieldPlan;
+import jrpc.ProtocolBuffers.MessageDefinition;
+import jrpc.ProtocolBuffers.MessageFieldModifier;
+import jrpc.ProtocolBuffers.MessagePlan;
+import jrpc.ProtocolBuffers.ServiceDefinition;
+import jrpc.ProtocolBuffers.ServiceMethodDefinition;
+import jrpc.ProtocolBuffers.WireType;
+
+// Emits a Java class per top level message and enum of a .proto file, nested types become nested
+// classes, and an interface per service with a bind method that registers it on a GrpcServer.
+// Streaming methods take a reader of requests and a writer of responses.
+// Messages have typed fields, a builder and straight line getSerializedSize, writeTo and parseFrom
+// methods with the tags inlined, and are otherwise wire compatible with MessageObject.
+//
+// Usage: java jrpc.CodeGenerator <file.proto> <output directory> [java package]
+public class CodeGenerator {
+    private final ProtocolBuffers pb;
+    private final String source;
+    private final String javaPackage;
+    // Definitions by identifier, sorted so nested types follow their parent
+    private final Map<String, Definition> definitions;
+
+    public CodeGenerator(ProtocolBuffers pb, String source, String javaPackage) {
+        this.pb = pb;
+        this.source = source;
+        this.javaPackage = javaPackage;
+        this.definitions = new TreeMap<>(pb.getDefinitions());
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java jrpc.CodeGenerator <file.proto> <output directory> [java package]");
+            System.exit(1);
+        }
+
+        String javaPackage = (args.length > 2) ? args[2] : null;
+        CodeGenerator generator = new CodeGenerator(new ProtocolBuffers(args[0]), new File(args[0]).getName(), javaPackage);
+        generator.generate(new File(args[1]));
+    }
+
+    // Writes one file per top level type, returns the files written
+    public List<File> generate(File outputDirectory) throws Exception {
+        File directory = (javaPackage == null) ? outputDirectory : new File(outputDirectory, javaPackage.replace('.', File.separatorChar));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new Exception("Unable to create directory: " + directory);
+        }
+
+        List<File> files = new ArrayList<>();
+        for (Map.Entry<String, Definition> entry : definitions.entrySet()) {
+            String identifier = entry.getKey();
+            if (identifier.contains(".")) {
+                continue;
+            }
+
+            Code code = new Code();
+            header(code);
+            if (entry.getValue() instanceof MessageDefinition) {
+                message(code, pb.getPlan(identifier), true);
+            } else if (entry.getValue() instanceof EnumDefinition) {
+                enumeration(code, (EnumDefinition) entry.getValue());
+            } else {
+                service(code, (ServiceDefinition) entry.getValue());
+            }
+
+            File file = new File(directory, identifier + ".java");
+            Files.writeString(file.toPath(), code.toString());
+            files.add(file);
+            System.err.println("INFO: Generated " + file);
+        }
+        return files;
+    }
+
+    private void header(Code code) {
+        code.line("// Generated by jrpc.CodeGenerator from " + source + ", do not edit");
+        if (javaPackage != null) {
+            code.line("package " + javaPackage + ";");
+        }
+        code.line();
+        code.line("import java.util.Arrays;");
+        code.line("import java.util.HashMap;");
+        code.line("import java.util.Map;");
+        code.line();
+        code.line("import jrpc.GrpcServer;");
+        code.line("import jrpc.GrpcStreamingHandler;");
+        code.line("import jrpc.ProtoMessage;");
+        code.line("import jrpc.Wire;");
+        code.line();
+    }
+
+    // Definitions declared directly inside the given message
+    private List<Definition> nestedDefinitions(String parent) {
+        List<Definition> nested = new ArrayList<>();
+        for (Map.Entry<String, Definition> entry : definitions.entrySet()) {
+            String identifier = entry.getKey();
+            if (identifier.startsWith(parent + ".") && identifier.indexOf('.', parent.length() + 1) < 0
+                    && !identifier.startsWith(parent + ".__")) {
+                nested.add(entry.getValue());
+            }
+        }
+        return nested;
+    }
+
+    private void enumeration(Code code, EnumDefinition definition) {
+        String name = simpleName(definition.identifier);
+        code.open("public enum " + name + " {");
+        definition.values.entrySet().stream()
+                .sorted(Map.Entry.comparingByValue())
+                .forEach(value -> code.line(value.getKey() + "(" + value.getValue() + "),"));
+        code.line("// Numbers this version of the schema does not know, they can not be written back");
+        code.line("UNRECOGNIZED(-1),");
+        code.line(";");
+        code.line();
+        code.line("private final int number;");
+        code.line();
+        code.open(name + "(int number) {");
+        code.line("this.number = number;");
+        code.close("}");
+        code.line();
+        code.open("public int getNumber() {");
+        code.open("if (this == UNRECOGNIZED) {");
+        code.line("throw new IllegalStateException(\"Unrecognized enum value\");");
+        code.close("}");
+        code.line("return number;");
+        code.close("}");
+        code.line();
+        code.open("public static " + name + " forNumber(int number) {");
+        code.open("return switch (number) {");
+        Map<Integer, String> names = new TreeMap<>();
+        for (Map.Entry<String, Integer> value : definition.values.entrySet()) {
+            names.merge(value.getValue(), value.getKey(), (first, alias) -> first.compareTo(alias) <= 0 ? first : alias);
+        }
+        for (Map.Entry<Integer, String> value : names.entrySet()) {
+            code.line("case " + value.getKey() + " -> " + value.getValue() + ";");
+        }
+        code.line("default -> UNRECOGNIZED;");
+        code.close("};");
+        code.close("}");
+        code.close("}");
+    }
+
+    private void message(Code code, MessagePlan plan, boolean topLevel) throws Exception {
+        String name = simpleName(plan.identifier);
+        FieldPlan[] fields = plan.getFields();
+
+        code.open("public " + (topLevel ? "" : "static ") + "final class " + name + " implements ProtoMessage {");
+        for (Definition nested : nestedDefinitions(plan.identifier)) {
+            if (nested instanceof MessageDefinition) {
+                message(code, pb.getPlan(((MessageDefinition) nested).identifier), false);
+            } else {
+                enumeration(code, (EnumDefinition) nested);
+            }
+            code.line();
+        }
+
+        fieldDeclarations(code, fields);
+        code.line();
+        code.open("private " + name + "() {");
+        code.close("}");
+        code.line();
+        accessors(code, fields);
+        builder(code, name, fields);
+        code.line();
+        sizeMethod(code, fields);
+        code.line();
+        writeMethod(code, fields);
+        code.line();
+        code.open("public byte[] toByteArray() throws Exception {");
+        code.line("byte[] $buffer = new byte[getSerializedSize()];");
+        code.line("writeTo($buffer, 0);");
+        code.line("return $buffer;");
+        code.close("}");
+        code.line();
+        parseMethods(code, name, fields);
+        code.close("}");
+    }
+
+    private void fieldDeclarations(Code code, FieldPlan[] fields) {
+        boolean bytes = false;
+        for (FieldPlan field : fields) {
+            bytes |= field.kind == FieldKind.BYTES || isMap(field) && mapValue(field).kind == FieldKind.BYTES;
+        }
+        if (bytes) {
+            code.line("private static final byte[] EMPTY_BYTES = {};");
+        }
+        for (FieldPlan field : fields) {
+            if (field.modifier == MessageFieldModifier.REPEATED) {
+                code.line("private static final " + fieldType(field) + " " + constantName(field) + " = {};");
+            }
+        }
+
+        List<String> oneofs = new ArrayList<>();
+        for (FieldPlan field : fields) {
+            String initializer = defaultValue(field);
+            code.line("private " + fieldType(field) + " " + fieldName(field) + (initializer != null ? " = " + initializer : "") + ";");
+            if (field.modifier == MessageFieldModifier.OPTIONAL) {
+                code.line("private boolean " + hasName(field) + ";");
+            }
+            if (field.packed) {
+                code.line("private int " + packedSizeName(field) + ";");
+            }
+            if (field.oneof != null && !oneofs.contains(field.oneof)) {
+                oneofs.add(field.oneof);
+                code.line("private int " + caseName(field.oneof) + "; // Number of the member that is set, 0 for none");
+            }
+        }
+        code.line("private int $serializedSize = -1;");
+    }
+
+    private void accessors(Code code, FieldPlan[] fields) {
+        List<String> oneofs = new ArrayList<>();
+        for (FieldPlan field : fields) {
+            code.open("public " + fieldType(field) + " get" + getterName(field) + "() {");
+            if (field.oneof != null) {
+                code.line("return (" + caseName(field.oneof) + " == " + field.number + ") ? this." + fieldName(field) + " : " + nonNullDefault(field) + ";");
+            } else {
+                code.line("return this." + fieldName(field) + ";");
+            }
+            code.close("}");
+            code.line();
+
+            if (field.modifier == MessageFieldModifier.OPTIONAL) {
+                code.open("public boolean has" + capitalized(field) + "() {");
+                code.line("return " + hasName(field) + ";");
+                code.close("}");
+                code.line();
+            }
+            if (field.oneof != null && !oneofs.contains(field.oneof)) {
+                oneofs.add(field.oneof);
+                code.open("public int get" + capitalize(camelCase(field.oneof)) + "Case() {");
+                code.line("return " + caseName(field.oneof) + ";");
+                code.close("}");
+                code.line();
+            }
+        }
+    }
+
+    private void builder(Code code, String name, FieldPlan[] fields) {
+        code.open("public static Builder newBuilder() {");
+        code.line("return new Builder();");
+        code.close("}");
+        code.line();
+        code.line("// Builds a single message, the builder can not be used after build");
+        code.open("public static final class Builder {");
+        code.line("private " + name + " message = new " + name + "();");
+        code.line();
+        code.open("private Builder() {");
+        code.close("}");
+        for (FieldPlan field : fields) {
+            String parameter = fieldType(field);
+            if (field.modifier == MessageFieldModifier.REPEATED) {
+                parameter = parameter.substring(0, parameter.length() - 2) + "...";
+            }
+            code.line();
+            code.open("public Builder set" + capitalized(field) + "(" + parameter + " value) {");
+            code.line("message." + fieldName(field) + " = value;");
+            if (field.modifier == MessageFieldModifier.OPTIONAL) {
+                code.line("message." + hasName(field) + " = true;");
+            }
+            if (field.oneof != null) {
+                code.line("message." + caseName(field.oneof) + " = " + field.number + ";");
+            }
+            code.line("return this;");
+            code.close("}");
+        }
+        code.line();
+        code.open("public " + name + " build() {");
+        code.line(name + " $built = message;");
+        code.line("message = null;");
+        code.line("return $built;");
+        code.close("}");
+        code.close("}");
+    }
+
+    // Memoized, built messages do not change
+    private void sizeMethod(Code code, FieldPlan[] fields) {
+        code.line("@Override");
+        code.open("public int getSerializedSize() throws Exception {");
+        code.open("if ($serializedSize >= 0) {");
+        code.line("return $serializedSize;");
+        code.close("}");
+        code.line();
+        code.line("int $size = 0;");
+        for (FieldPlan field : fields) {
+            String value = "this." + fieldName(field);
+            int tagSize = field.tag.length;
+            String check = presenceCheck(field);
+            if (check != null) {
+                code.open(check);
+            }
+            if (field.packed) {
+                code.line("int $packedSize = 0;");
+                code.open("for (" + elementType(field) + " $element : " + value + ") {");
+                code.line("$packedSize += " + valueSize(field, "$element") + ";");
+                code.close("}");
+                code.line(packedSizeName(field) + " = $packedSize;");
+                code.line("$size += " + field.packedTag.length + " + Wire.varintSize($packedSize) + $packedSize;");
+            } else if (field.modifier == MessageFieldModifier.REPEATED) {
+                code.open("for (" + elementType(field) + " $element : " + value + ") {");
+                code.line("$size += " + tagSize + " + " + valueSize(field, "$element") + ";");
+                code.close("}");
+            } else if (isMap(field)) {
+                code.open("for (Map.Entry<" + boxedType(mapKey(field)) + ", " + boxedType(mapValue(field)) + "> $entry : " + value + ".entrySet()) {");
+                code.line("int $entrySize = " + entrySize(field) + ";");
+                code.line("$size += " + tagSize + " + Wire.varintSize($entrySize) + $entrySize;");
+                code.close("}");
+            } else {
+                code.line("$size += " + tagSize + " + " + valueSize(field, value) + ";");
+            }
+            if (check != null) {
+                code.close("}");
+            }
+        }
+        code.line("$serializedSize = $size;");
+        code.line("return $size;");
+        code.close("}");
+    }
+
+    private void writeMethod(Code code, FieldPlan[] fields) {
+        code.line("@Override");
+        code.open("public int writeTo(byte[] $buffer, int $offset) throws Exception {");
+        for (FieldPlan field : fields) {
+            String value = "this." + fieldName(field);
+            String check = presenceCheck(field);
+            if (check != null) {
+                code.open(check);
+            }
+            if (field.packed) {
+                writeTag(code, field.packedTag);
+                code.line("$offset = Wire.writeVarint($buffer, $offset, " + packedSizeName(field) + ");");
+                code.open("for (" + elementType(field) + " $element : " + value + ") {");
+                writeValue(code, field, "$element");
+                code.close("}");
+            } else if (field.modifier == MessageFieldModifier.REPEATED) {
+                code.open("for (" + elementType(field) + " $element : " + value + ") {");
+                writeTag(code, field.tag);
+                writeValue(code, field, "$element");
+                code.close("}");
+            } else if (isMap(field)) {
+                FieldPlan key = mapKey(field);
+                FieldPlan entryValue = mapValue(field);
+                code.open("for (Map.Entry<" + boxedType(key) + ", " + boxedType(entryValue) + "> $entry : " + value + ".entrySet()) {");
+                writeTag(code, field.tag);
+                code.line("$offset = Wire.writeVarint($buffer, $offset, " + entrySize(field) + ");");
+                writeTag(code, key.tag);
+                writeValue(code, key, "$entry.getKey()");
+                writeTag(code, entryValue.tag);
+                writeValue(code, entryValue, "$entry.getValue()");
+                code.close("}");
+            } else {
+                writeTag(code, field.tag);
+                writeValue(code, field, value);
+            }
+            if (check != null) {
+                code.close("}");
+            }
+        }
+        code.line("return $offset;");
+        code.close("}");
+    }
+
+    private void parseMethods(Code code, String name, FieldPlan[] fields) throws Exception {
+        code.open("public static " + name + " parseFrom(byte[] $buffer) throws Exception {");
+        code.line("return parseFrom($buffer, 0, $buffer.length);");
+        code.close("}");
+        code.line();
+        code.open("public static " + name + " parseFrom(byte[] $buffer, int $offset, int $length) throws Exception {");
+        code.line("return parseFrom(new Wire.Input($buffer, $offset, $offset + $length));");
+        code.close("}");
+        code.line();
+        code.line("// Length prefixed, as nested in another message");
+        code.open("static " + name + " parseDelimited(Wire.Input $in) throws Exception {");
+        code.line("int $limit = $in.pushLimit();");
+        code.line(name + " $message = parseFrom($in);");
+        code.line("$in.popLimit($limit);");
+        code.line("return $message;");
+        code.close("}");
+        code.line();
+        code.open("private static " + name + " parseFrom(Wire.Input $in) throws Exception {");
+        code.line(name + " $message = new " + name + "();");
+        for (FieldPlan field : fields) {
+            if (field.modifier == MessageFieldModifier.REPEATED) {
+                code.line(fieldType(field) + " " + valuesName(field) + " = null;");
+                code.line("int " + countName(field) + " = 0;");
+            }
+        }
+        code.open("while (!$in.isAtEnd()) {");
+        code.line("int $tag = (int) $in.readVarint();");
+        code.open("switch ($tag) {");
+        for (FieldPlan field : fields) {
+            String target = "$message." + fieldName(field);
+            if (field.modifier == MessageFieldModifier.REPEATED) {
+                code.open("case " + tagValue(field.number, field.kind.wireType) + " -> {");
+                appendValue(code, field, readValue(field));
+                code.close("}");
+                if (field.packed) {
+                    code.open("case " + tagValue(field.number, WireType.LENGTH_DELIMITED) + " -> {");
+                    code.line("int $limit = $in.pushLimit();");
+                    code.open("while (!$in.isAtEnd()) {");
+                    appendValue(code, field, readValue(field));
+                    code.close("}");
+                    code.line("$in.popLimit($limit);");
+                    code.close("}");
+                }
+            } else if (isMap(field)) {
+                FieldPlan key = mapKey(field);
+                FieldPlan value = mapValue(field);
+                code.open("case " + tagValue(field.number, WireType.LENGTH_DELIMITED) + " -> {");
+                code.line("int $limit = $in.pushLimit();");
+                code.line(boxedType(key) + " $key = " + nonNullDefault(key) + ";");
+                code.line(boxedType(value) + " $value = " + nonNullDefault(value) + ";");
+                code.open("while (!$in.isAtEnd()) {");
+                code.line("int $entryTag = (int) $in.readVarint();");
+                code.open("if ($entryTag == " + tagValue(1, key.kind.wireType) + ") {");
+                code.line("$key = " + readValue(key) + ";");
+                code.reopen("} else if ($entryTag == " + tagValue(2, value.kind.wireType) + ") {");
+                code.line("$value = " + readValue(value) + ";");
+                code.reopen("} else {");
+                code.line("throw new Exception(\"Unexpected tag \" + $entryTag + \" in map entry of " + field.identifier + "\");");
+                code.close("}");
+                code.close("}");
+                code.line("$in.popLimit($limit);");
+                if (value.kind == FieldKind.MESSAGE) {
+                    code.open("if ($value == null) {");
+                    code.line("$value = " + javaName(value.message.identifier) + ".newBuilder().build();");
+                    code.close("}");
+                }
+                code.open("if (" + target + ".isEmpty()) {");
+                code.line(target + " = new HashMap<>();");
+                code.close("}");
+                code.line(target + ".put($key, $value);");
+                code.close("}");
+            } else {
+                code.open("case " + tagValue(field.number, field.kind.wireType) + " -> {");
+                code.line(target + " = " + readValue(field) + ";");
+                if (field.modifier == MessageFieldModifier.OPTIONAL) {
+                    code.line("$message." + hasName(field) + " = true;");
+                }
+                if (field.oneof != null) {
+                    code.line("$message." + caseName(field.oneof) + " = " + field.number + ";");
+                }
+                code.close("}");
+            }
+        }
+        code.line("default -> throw new Exception(\"Unexpected tag \" + $tag + \" in " + name + "\");");
+        code.close("}");
+        code.close("}");
+        for (FieldPlan field : fields) {
+            if (field.modifier == MessageFieldModifier.REPEATED) {
+                code.open("if (" + valuesName(field) + " != null) {");
+                code.line("$message." + fieldName(field) + " = Arrays.copyOf(" + valuesName(field) + ", " + countName(field) + ");");
+                code.close("}");
+            }
+        }
+        code.line("return $message;");
+        code.close("}");
+    }
+
+    private void service(Code code, ServiceDefinition definition) {
+        code.open("public interface " + definition.identifier + " {");
+        Map<String, ServiceMethodDefinition> methods = new TreeMap<>(definition.methods);
+        for (Map.Entry<String, ServiceMethodDefinition> method : methods.entrySet()) {
+            ServiceMethodDefinition types = method.getValue();
+            if (isStreaming(types)) {
+                code.line("void " + decapitalize(method.getKey()) + "(GrpcStreamingHandler.Reader<" + javaName(types.inputIdentifier) + "> requests, GrpcStreamingHandler.Writer<" + javaName(types.outputIdentifier) + "> responses) throws Exception;");
+            } else {
+                code.line(javaName(types.outputIdentifier) + " " + decapitalize(method.getKey()) + "(" + javaName(types.inputIdentifier) + " request) throws Exception;");
+            }
+            code.line();
+        }
+        code.line("// Registers every method, the server must have been created with the same .proto file");
+        code.open("static void bind(GrpcServer server, " + definition.identifier + " service) throws Exception {");
+        for (Map.Entry<String, ServiceMethodDefinition> method : methods.entrySet()) {
+            String path = "/" + definition.identifier + "/" + method.getKey();
+            String register = isStreaming(method.getValue()) ? "addStreamingHandler" : "addHandler";
+            code.line("server." + register + "(\"" + path + "\", " + javaName(method.getValue().inputIdentifier) + "::parseFrom, service::" + decapitalize(method.getKey()) + ");");
+        }
+        code.close("}");
+        code.close("}");
+    }
+
+    private static boolean isStreaming(ServiceMethodDefinition method) {
+        return method.clientStreaming || method.serverStreaming;
+    }
+
+    private void writeTag(Code code, byte[] tag) {
+        for (byte b : tag) {
+            code.line("$buffer[$offset++] = " + b + ";");
+        }
+    }
+
+    private void writeValue(Code code, FieldPlan field, String value) {
+        switch (field.kind) {
+            case INT32, INT64, UINT64 -> code.line("$offset = Wire.writeVarint($buffer, $offset, " + value + ");");
+            case UINT32 -> code.line("$offset = Wire.writeVarint($buffer, $offset, " + value + " & 0xFFFFFFFFL);");
+            case SINT32, SINT64 -> code.line("$offset = Wire.writeVarint($buffer, $offset, Wire.zigzag(" + value + "));");
+            case BOOL -> code.line("$buffer[$offset++] = (byte) (" + value + " ? 1 : 0);");
+            case FIXED32, SFIXED32 -> code.line("$offset = Wire.writeFixed32($buffer, $offset, " + value + ");");
+            case FLOAT -> code.line("$offset = Wire.writeFixed32($buffer, $offset, Float.floatToRawIntBits(" + value + "));");
+            case FIXED64, SFIXED64 -> code.line("$offset = Wire.writeFixed64($buffer, $offset, " + value + ");");
+            case DOUBLE -> code.line("$offset = Wire.writeFixed64($buffer, $offset, Double.doubleToRawLongBits(" + value + "));");
+            case STRING -> code.line("$offset = Wire.writeString($buffer, $offset, " + value + ");");
+            case BYTES -> code.line("$offset = Wire.writeBytes($buffer, $offset, " + value + ");");
+            case ENUM -> code.line("$offset = Wire.writeVarint($buffer, $offset, " + value + ".getNumber());");
+            case MESSAGE -> code.line("$offset = Wire.writeMessage($buffer, $offset, " + value + ");");
+        }
+    }
+
+    // Without the tag
+    private String valueSize(FieldPlan field, String value) {
+        return switch (field.kind) {
+            case INT32, INT64, UINT64 -> "Wire.varintSize(" + value + ")";
+            case UINT32 -> "Wire.varintSize(" + value + " & 0xFFFFFFFFL)";
+            case SINT32, SINT64 -> "Wire.varintSize(Wire.zigzag(" + value + "))";
+            case BOOL -> "1";
+            case FIXED32, SFIXED32, FLOAT -> "4";
+            case FIXED64, SFIXED64, DOUBLE -> "8";
+            case STRING -> "Wire.stringSize(" + value + ")";
+            case BYTES -> "Wire.varintSize(" + value + ".length) + " + value + ".length";
+            case ENUM -> "Wire.varintSize(" + value + ".getNumber())";
+            case MESSAGE -> "Wire.messageSize(" + value + ")";
+        };
+    }
+
+    private String entrySize(FieldPlan field) {
+        FieldPlan key = mapKey(field);
+        FieldPlan value = mapValue(field);
+        return key.tag.length + " + " + valueSize(key, "$entry.getKey()") + " + " + value.tag.length + " + " + valueSize(value, "$entry.getValue()");
+    }
+
+    private String readValue(FieldPlan field) {
+        return switch (field.kind) {
+            case INT32, UINT32 -> "(int) $in.readVarint()";
+            case INT64, UINT64 -> "$in.readVarint()";
+            case SINT32 -> "(int) Wire.unzigzag($in.readVarint() & 0xFFFFFFFFL)";
+            case SINT64 -> "Wire.unzigzag($in.readVarint())";
+            case BOOL -> "$in.readVarint() != 0";
+            case FIXED32, SFIXED32 -> "$in.readFixed32()";
+            case FLOAT -> "Float.intBitsToFloat($in.readFixed32())";
+            case FIXED64, SFIXED64 -> "$in.readFixed64()";
+            case DOUBLE -> "Double.longBitsToDouble($in.readFixed64())";
+            case STRING -> "$in.readString()";
+            case BYTES -> "$in.readBytes()";
+            case ENUM -> javaName(field.enumIdentifier) + ".forNumber((int) $in.readVarint())";
+            case MESSAGE -> javaName(field.message.identifier) + ".parseDelimited($in)";
+        };
+    }
+
+    private void appendValue(Code code, FieldPlan field, String value) {
+        String values = valuesName(field);
+        String count = countName(field);
+        code.open("if (" + values + " == null) {");
+        String elementType = elementType(field);
+        code.line(values + " = " + (elementType.endsWith("[]") ? "new byte[8][]" : "new " + elementType + "[8]") + ";");
+        code.reopen("} else if (" + count + " == " + values + ".length) {");
+        code.line(values + " = Arrays.copyOf(" + values + ", " + count + " * 2);");
+        code.close("}");
+        code.line(values + "[" + count + "++] = " + value + ";");
+    }
+
+    // Singular fields are always written, like MessageObject does, unless they track presence.
+    // Null when there is nothing to check.
+    private String presenceCheck(FieldPlan field) {
+        String value = "this." + fieldName(field);
+        if (field.oneof != null) {
+            return "if (" + caseName(field.oneof) + " == " + field.number + ") {";
+        } else if (field.modifier == MessageFieldModifier.OPTIONAL) {
+            return "if (" + hasName(field) + ") {";
+        } else if (field.modifier == MessageFieldModifier.REPEATED) {
+            return "if (" + value + ".length != 0) {";
+        } else if (isMap(field)) {
+            return "if (!" + value + ".isEmpty()) {";
+        } else if (field.kind == FieldKind.MESSAGE) {
+            return "if (" + value + " != null) {";
+        }
+        return null;
+    }
+
+    private static boolean isMap(FieldPlan field) {
+        return field.modifier == MessageFieldModifier.MAP;
+    }
+
+    private static FieldPlan mapKey(FieldPlan field) {
+        return field.message.getFields()[0];
+    }
+
+    private static FieldPlan mapValue(FieldPlan field) {
+        return field.message.getFields()[1];
+    }
+
+    private String elementType(FieldPlan field) {
+        return switch (field.kind) {
+            case INT32, UINT32, SINT32, FIXED32, SFIXED32 -> "int";
+            case INT64, UINT64, SINT64, FIXED64, SFIXED64 -> "long";
+            case FLOAT -> "float";
+            case DOUBLE -> "double";
+            case BOOL -> "boolean";
+            case STRING -> "String";
+            case BYTES -> "byte[]";
+            case ENUM -> javaName(field.enumIdentifier);
+            case MESSAGE -> javaName(field.message.identifier);
+        };
+    }
+
+    private String boxedType(FieldPlan field) {
+        return switch (field.kind) {
+            case INT32, UINT32, SINT32, FIXED32, SFIXED32 -> "Integer";
+            case INT64, UINT64, SINT64, FIXED64, SFIXED64 -> "Long";
+            case FLOAT -> "Float";
+            case DOUBLE -> "Double";
+            case BOOL -> "Boolean";
+            default -> elementType(field);
+        };
+    }
+
+    private String fieldType(FieldPlan field) {
+        if (field.modifier == MessageFieldModifier.REPEATED) {
+            return elementType(field) + "[]";
+        } else if (isMap(field)) {
+            return "Map<" + boxedType(mapKey(field)) + ", " + boxedType(mapValue(field)) + ">";
+        }
+        return elementType(field);
+    }
+
+    // Field initializer, null when the Java default already is the proto default
+    private String defaultValue(FieldPlan field) {
+        if (field.modifier == MessageFieldModifier.REPEATED) {
+            return constantName(field);
+        } else if (isMap(field)) {
+            return "Map.of()";
+        }
+        return switch (field.kind) {
+            case STRING, BYTES, ENUM -> nonNullDefault(field);
+            default -> null;
+        };
+    }
+
+    private String nonNullDefault(FieldPlan field) {
+        return switch (field.kind) {
+            case INT32, UINT32, SINT32, FIXED32, SFIXED32 -> "0";
+            case INT64, UINT64, SINT64, FIXED64, SFIXED64 -> "0L";
+            case FLOAT -> "0f";
+            case DOUBLE -> "0.0";
+            case BOOL -> "false";
+            case STRING -> "\"\"";
+            case BYTES -> "EMPTY_BYTES";
+            case ENUM -> javaName(field.enumIdentifier) + ".forNumber(0)";
+            case MESSAGE -> "null";
+        };
+    }
+
+    private static int tagValue(int number, WireType wireType) {
+        return (number << 3) | wireType.value;
+    }
+
+    // Nested types are nested classes, so the identifier already is the Java name
+    private static String javaName(String identifier) {
+        return identifier;
+    }
+
+    private static String simpleName(String identifier) {
+        return identifier.substring(identifier.lastIndexOf('.') + 1);
+    }
+
+    private static String fieldName(FieldPlan field) {
+        String name = camelCase(field.identifier);
+        return KEYWORDS.contains(name) ? name + "_" : name;
+    }
+
+    private static String capitalized(FieldPlan field) {
+        return capitalize(camelCase(field.identifier));
+    }
+
+    // Getters that would override a method of Object or ProtoMessage get a trailing underscore
+    private static String getterName(FieldPlan field) {
+        String name = capitalized(field);
+        return INHERITED_GETTERS.contains(name) ? name + "_" : name;
+    }
+
+    // Generated names other than fields start with or contain '$', which proto identifiers can
+    // not, so no field name collides with them
+    private static String hasName(FieldPlan field) {
+        return "$has" + capitalized(field);
+    }
+
+    private static String packedSizeName(FieldPlan field) {
+        return fieldName(field) + "$packedSize";
+    }
+
+    private static String valuesName(FieldPlan field) {
+        return fieldName(field) + "$values";
+    }
+
+    private static String countName(FieldPlan field) {
+        return fieldName(field) + "$count";
+    }
+
+    private static String caseName(String oneof) {
+        return "$" + camelCase(oneof) + "Case";
+    }
+
+    private static String constantName(FieldPlan field) {
+        return field.identifier.toUpperCase() + "_DEFAULT";
+    }
+
+    private static String camelCase(String identifier) {
+        StringBuilder sb = new StringBuilder();
+        boolean upper = false;
+        for (char ch : identifier.toCharArray()) {
+            if (ch == '_') {
+                upper = sb.length() > 0;
+            } else {
+                sb.append(upper ? Character.toUpperCase(ch) : ch);
+                upper = false;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String capitalize(String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static String decapitalize(String name) {
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static final List<String> INHERITED_GETTERS = List.of("Class", "SerializedSize");
+
+    private static final List<String> KEYWORDS = List.of(
+            "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const",
+            "continue", "default", "do", "double", "else", "enum", "extends", "final", "finally", "float",
+            "for", "goto", "if", "implements", "import", "instanceof", "int", "interface", "long", "native",
+            "new", "package", "private", "protected", "public", "return", "short", "static", "strictfp", "super",
+            "switch", "synchronized", "this", "throw", "throws", "transient", "try", "void", "volatile", "while");
+
+    // Source text with four space indentation
+    private static class Code {
+        private final StringBuilder sb = new StringBuilder();
+        private int indent = 0;
+
+        void line() {
+            sb.append('\n');
+        }
+
+        void line(String text) {
+            sb.append("    ".repeat(indent)).append(text).append('\n');
+        }
+
+        void open(String text) {
+            line(text);
+            indent++;
+        }
+
+        void reopen(String text) {
+            indent--;
+            line(text);
+            indent++;
+        }
+
+        void close(String text) {
+            indent--;
+            line(text);
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package jrpc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import jrpc.ProtocolBuffers.FieldKind;
+import jrpc.ProtocolBuffers.FieldPlan;
+import jrpc.ProtocolBuffers.MessageFieldModifier;
+import jrpc.ProtocolBuffers.MessagePlan;
+
+// Compiles a MessageCodec per message type when a schema is loaded at runtime. Singular scalar and
+// string fields get straight line code on the message storage with their tags inlined, every
+// other field goes through the same per field methods the generic loops of MessageObject use.
+// The source is compiled in memory with the JDK compiler and each class is defined as a hidden
+// class holding its field plans, so codecs go away with the schema they were compiled for.
+// This needs a JDK at runtime (javax.tools with the java.compiler module, not a JRE or a jlink
+// image without it) and the jrpc classes on a file system path the compiler can read: the
+// java.class.path entries plus the location jrpc was loaded from.
+class CodecCompiler {
+    private static final String PACKAGE = CodecCompiler.class.getPackageName();
+
+    static void compile(List<MessagePlan> plans) throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new Exception("No Java compiler available, the runtime is not a JDK");
+        }
+
+        List<JavaFileObject> sources = new ArrayList<>();
+        for (int i = 0; i < plans.size(); i++) {
+            sources.add(new Source(className(i), source(className(i), plans.get(i))));
+        }
+
+        StringWriter errors = new StringWriter();
+        ClassOutput output = new ClassOutput(compiler.getStandardFileManager(null, null, null));
+        List<String> options = List.of("-classpath", classPath(), "-proc:none", "-g:none");
+        if (!compiler.getTask(errors, output, null, options, null, sources).call()) {
+            throw new Exception("Codec compilation failed : " + errors);
+        }
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        for (int i = 0; i < plans.size(); i++) {
+            MessagePlan plan = plans.get(i);
+            byte[] bytecode = output.classes.get(PACKAGE + "." + className(i));
+            Class<?> codecClass = lookup.defineHiddenClassWithClassData(bytecode, plan.getFields(), true).lookupClass();
+            plan.codec = (MessageCodec) codecClass.getDeclaredConstructor().newInstance();
+        }
+    }
+
+    private static String className(int index) {
+        return "MessageCodec" + index;
+    }
+
+    static String source(String className, MessagePlan plan) {
+        FieldPlan[] fields = plan.getFields();
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(PACKAGE).append(";\n\n");
+        sb.append("import java.lang.constant.ConstantDescs;\n");
+        sb.append("import java.lang.invoke.MethodHandles;\n\n");
+        sb.append("import jrpc.ProtocolBuffers.FieldPlan;\n\n");
+        sb.append("// ").append(plan.identifier).append("\n");
+        sb.append("final class ").append(className).append(" implements MessageCodec {\n");
+        sb.append("    private static final FieldPlan[] FIELDS;\n\n");
+        sb.append("    static {\n");
+        sb.append("        try {\n");
+        sb.append("            FIELDS = MethodHandles.classData(MethodHandles.lookup(), ConstantDescs.DEFAULT_NAME, FieldPlan[].class);\n");
+        sb.append("        } catch (IllegalAccessException e) {\n");
+        sb.append("            throw new ExceptionInInitializerError(e);\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+        sb.append("    @Override\n");
+        sb.append("    public int computeSize(MessageObject message) throws Exception {\n");
+        sb.append("        message.assertRequiredFields();\n");
+        sb.append("        long[] scalars = message.scalars;\n");
+        sb.append("        long[] present = message.present;\n");
+        sb.append("        Object[] values = message.values;\n");
+        sb.append("        int size = 0;\n");
+        for (FieldPlan field : fields) {
+            sb.append("        if (").append(presence(field)).append(") {\n");
+            if (field.primitive) {
+                sb.append("            size += ").append(field.tag.length).append(" + ").append(scalarSize(field, "scalars[" + field.slot + "]")).append(";\n");
+            } else if (isString(field)) {
+                sb.append("            Object value = values[").append(field.slot).append("];\n");
+                sb.append("            size += (value instanceof String) ? ").append(field.tag.length).append(" + Wire.stringSize((String) value) : message.slotSize(FIELDS[").append(field.slot).append("]);\n");
+            } else {
+                sb.append("            size += message.slotSize(FIELDS[").append(field.slot).append("]);\n");
+            }
+            sb.append("        }\n");
+        }
+        sb.append("        message.serializedSize = size;\n");
+        sb.append("        return size;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    @Override\n");
+        sb.append("    public int writeTo(MessageObject message, byte[] buffer, int offset) throws Exception {\n");
+        sb.append("        long[] scalars = message.scalars;\n");
+        sb.append("        long[] present = message.present;\n");
+        sb.append("        Object[] values = message.values;\n");
+        for (FieldPlan field : fields) {
+            sb.append("        if (").append(presence(field)).append(") {\n");
+            if (field.primitive) {
+                appendTag(sb, field.tag, "            ");
+                sb.append("            ").append(writeScalar(field, "scalars[" + field.slot + "]")).append(";\n");
+            } else if (isString(field)) {
+                sb.append("            Object value = values[").append(field.slot).append("];\n");
+                sb.append("            if (value instanceof String) {\n");
+                appendTag(sb, field.tag, "                ");
+                sb.append("                offset = Wire.writeString(buffer, offset, (String) value);\n");
+                sb.append("            } else {\n");
+                sb.append("                offset = message.writeSlot(buffer, offset, FIELDS[").append(field.slot).append("]);\n");
+                sb.append("            }\n");
+            } else {
+                sb.append("            offset = message.writeSlot(buffer, offset, FIELDS[").append(field.slot).append("]);\n");
+            }
+            sb.append("        }\n");
+        }
+        sb.append("        return offset;\n");
+        sb.append("    }\n\n");
+
+        // Oneof members need their siblings cleared and are left to readField
+        sb.append("    @Override\n");
+        sb.append("    public void deserialize(MessageObject message, Wire.Input in, boolean lazy) throws Exception {\n");
+        sb.append("        long[] scalars = message.scalars;\n");
+        sb.append("        long[] present = message.present;\n");
+        sb.append("        Object[] values = message.values;\n");
+        sb.append("        boolean accumulated = false;\n");
+        sb.append("        while (in.position < in.limit) {\n");
+        sb.append("            int start = in.position;\n");
+        sb.append("            long tag = in.readVarint();\n");
+        sb.append("            switch ((tag >>> 31) == 0 ? (int) tag : -1) {\n");
+        for (FieldPlan field : fields) {
+            if (field.oneof != null || !(field.primitive || isString(field))) {
+                continue;
+            }
+            int tag = (field.number << 3) | field.kind.wireType.value;
+            String mark = "present[" + (field.slot >>> 6) + "] |= " + bit(field) + ";";
+            sb.append("                case ").append(tag).append(" -> {\n");
+            if (field.primitive) {
+                sb.append("                    scalars[").append(field.slot).append("] = ").append(readScalar(field)).append(";\n");
+                sb.append("                    ").append(mark).append("\n");
+            } else {
+                sb.append("                    if (lazy) {\n");
+                sb.append("                        accumulated |= message.readField(in, start, tag, true);\n");
+                sb.append("                    } else {\n");
+                sb.append("                        values[").append(field.slot).append("] = in.readString();\n");
+                sb.append("                        ").append(mark).append("\n");
+                sb.append("                    }\n");
+            }
+            sb.append("                }\n");
+        }
+        sb.append("                default -> accumulated |= message.readField(in, start, tag, lazy);\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("        message.finishDeserialize(accumulated);\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static boolean isString(FieldPlan field) {
+        return field.kind == FieldKind.STRING && field.modifier != MessageFieldModifier.REPEATED && field.modifier != MessageFieldModifier.MAP;
+    }
+
+    private static String bit(FieldPlan field) {
+        return "0x" + Long.toHexString(1L << field.slot) + "L";
+    }
+
+    private static String presence(FieldPlan field) {
+        return "(present[" + (field.slot >>> 6) + "] & " + bit(field) + ") != 0";
+    }
+
+    private static void appendTag(StringBuilder sb, byte[] tag, String indent) {
+        for (byte b : tag) {
+            sb.append(indent).append("buffer[offset++] = ").append(b).append(";\n");
+        }
+    }
+
+    // Same encodings as MessageObject.scalarSize, writeScalarValue and readScalar
+    private static String scalarSize(FieldPlan field, String bits) {
+        return switch (field.kind) {
+            case INT32, INT64, UINT64 -> "Wire.varintSize(" + bits + ")";
+            case UINT32 -> "Wire.varintSize(" + bits + " & 0xFFFFFFFFL)";
+            case SINT32, SINT64 -> "Wire.varintSize(Wire.zigzag(" + bits + "))";
+            case BOOL -> "1";
+            case FIXED32, SFIXED32, FLOAT -> "4";
+            default -> "8";
+        };
+    }
+
+    private static String writeScalar(FieldPlan field, String bits) {
+        return switch (field.kind) {
+            case INT32, INT64, UINT64 -> "offset = Wire.writeVarint(buffer, offset, " + bits + ")";
+            case UINT32 -> "offset = Wire.writeVarint(buffer, offset, " + bits + " & 0xFFFFFFFFL)";
+            case SINT32, SINT64 -> "offset = Wire.writeVarint(buffer, offset, Wire.zigzag(" + bits + "))";
+            case BOOL -> "buffer[offset++] = (byte) " + bits;
+            case FIXED32, SFIXED32, FLOAT -> "offset = Wire.writeFixed32(buffer, offset, (int) " + bits + ")";
+            default -> "offset = Wire.writeFixed64(buffer, offset, " + bits + ")";
+        };
+    }
+
+    private static String readScalar(FieldPlan field) {
+        return switch (field.kind) {
+            case INT32, UINT32 -> "(int) in.readVarint()";
+            case INT64, UINT64 -> "in.readVarint()";
+            case SINT32 -> "(int) Wire.unzigzag(in.readVarint() & 0xFFFFFFFFL)";
+            case SINT64 -> "Wire.unzigzag(in.readVarint())";
+            case BOOL -> "in.readVarint() != 0 ? 1 : 0";
+            case FIXED32, SFIXED32, FLOAT -> "in.readFixed32()";
+            default -> "in.readFixed64()";
+        };
+    }
+
+    private static class Source extends SimpleJavaFileObject {
+        private final String code;
+
+        Source(String className, String code) {
+            super(URI.create("string:///" + PACKAGE.replace('.', '/') + "/" + className + JavaFileObject.Kind.SOURCE.extension), JavaFileObject.Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+    // The compiler resolves jrpc types from files, so the location jrpc was loaded from is added for
+    // class loaders that do not use java.class.path (application servers, plugins, tests)
+    private static String classPath() {
+        String classPath = System.getProperty("java.class.path", "");
+        try {
+            CodeSource source = CodecCompiler.class.getProtectionDomain().getCodeSource();
+            if (source != null && source.getLocation() != null && "file".equals(source.getLocation().getProtocol())) {
+                String location = Paths.get(source.getLocation().toURI()).toString();
+                classPath = classPath.isEmpty() ? location : location + File.pathSeparator + classPath;
+            }
+        } catch (Exception e) {
+            System.err.println("WARN: Location of jrpc classes unknown, compiling codecs with java.class.path : " + e.getMessage());
+        }
+        return classPath;
+    }
+
+    // Keeps the compiled classes in memory by binary name
+    private static class ClassOutput extends ForwardingJavaFileManager<JavaFileManager> {
+        final Map<String, byte[]> classes = new HashMap<>();
+
+        ClassOutput(JavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) {
+            return new SimpleJavaFileObject(URI.create("bytes:///" + className.replace('.', '/') + kind.extension), kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return new ByteArrayOutputStream() {
+                        @Override
+                        public void close() {
+                            classes.put(className, toByteArray());
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package jrpc;
+
+import java.util.concurrent.CompletableFuture;
+
+// Handler that does not hold a thread while it waits, the response is written once the future
+// completes. The future is cancelled when the client resets the call.
+@FunctionalInterface
+public interface GrpcAsyncHandler {
+    CompletableFuture<MessageObject> apply(MessageObject messageObject) throws Exception;
+}
@@ -0,0 +1,1241 @@
+package jrpc;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jrpc.ProtocolBuffers.ServiceMethodDefinition;
+
+class GrpcConnection {
+    public static final int GRPC_STATUS_OK = 0;
+    public static final int GRPC_STATUS_CANCELLED = 1;
+    public static final int GRPC_STATUS_RESOURCE_EXHAUSTED = 8;
+    public static final int GRPC_STATUS_UNIMPLEMENTED = 12;
+    public static final int GRPC_STATUS_INTERNAL = 13;
+
+    public static final int IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+    public static final int MAX_FRAME_SIZE = 16384;
+    public static final int READ_BUFFER_SIZE = HTTP2.FRAME_HEADER_LENGTH + MAX_FRAME_SIZE;
+    // Largest request message accepted, the gRPC default
+    public static final int MAX_MESSAGE_SIZE = 4 * 1024 * 1024;
+
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    private static final boolean LOG_FRAMES = Boolean.getBoolean("jrpc.logFrames");
+    // Upper bound of receive windows grown by BDP estimation
+    private static final int MAX_ADAPTIVE_WINDOW_SIZE = 16 * 1024 * 1024;
+    // Payload that tells the PINGs of BDP estimation apart from the peer's
+    private static final long BDP_PING_DATA = 0x6264702d70696e67L;
+    // Least time between the starts of two BDP measurements, a busy connection would otherwise
+    // send a PING for every round trip
+    static final long BDP_PING_INTERVAL_MS = 100;
+    // Error text varies from call to call, indexing it would only evict the fields every
+    // response shares
+    private static final Set<String> ERROR_TRAILERS = Set.of("grpc-message");
+    // Queued behind the requests of a streaming call
+    private static final Object END_OF_REQUESTS = new Object();
+    private static final Object CANCELLED = new Object();
+
+    private final GrpcServer server;
+    private final Output out;
+    // Held while writing frames and touching send state. A lock rather than the monitor, so
+    // virtual threads blocked on the socket or on a send window do not pin their carrier thread.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Signalled when a streaming call's pending message is written or the call ends
+    private final Condition sendWindowOpened = writeLock.newCondition();
+    private ByteBuffer writeBuffer; // Guarded by writeLock
+    // Send side flow control, changed by the peer's SETTINGS and WINDOW_UPDATE frames
+    private int sendWindow = HTTP2.DEFAULT_INITIAL_WINDOW_SIZE; // Guarded by writeLock
+    private int initialSendWindow = HTTP2.DEFAULT_INITIAL_WINDOW_SIZE; // Guarded by writeLock
+    private int maxSendFrameSize = HTTP2.DEFAULT_MAX_FRAME_SIZE; // Guarded by writeLock
+    // Recycled requests and responses, null unless message pooling is enabled
+    private final MessagePool pool;
+
+    // Receive side flow control, only used by the reading thread
+    private final double windowUpdateRatio;
+    private final boolean adaptiveWindow;
+    // Size of the connection window and of every stream window
+    private int receiveWindowSize;
+    // Left of the connection window, streams keep their own
+    private int receiveWindow = HTTP2.DEFAULT_INITIAL_WINDOW_SIZE;
+    // Bytes received since the BDP PING in flight was sent
+    private boolean bdpPingPending;
+    private int bdpSample;
+    private long bdpPingSentAt;
+
+    // Reused for every received frame, its payload is a view into the receive buffer
+    private final HTTP2.Frame frame = new HTTP2.Frame();
+
+    // Decoder is only touched by the reading thread, encoder only while holding the write lock
+    private final HPack decoder = new HPack();
+    private final HPack encoder = new HPack();
+
+    private final Map<Integer, GrpcStream> streams = new ConcurrentHashMap<>();
+    private int lastStreamId = 0;
+    private boolean prefaceReceived = false;
+    private volatile boolean goAwayReceived = false;
+    private volatile boolean closed = false;
+
+    // Header block being assembled from HEADERS and CONTINUATION frames
+    private int pendingHeadersStreamId;
+    private int pendingHeadersFlag;
+    private ByteArrayOutputStream pendingHeaderBlock;
+
+    // Implemented by the transports, written buffers belong to the transport which returns them to the BufferPool
+    interface Output {
+        // Queues the buffer, nothing has to reach the socket before the next flush
+        void write(ByteBuffer buffer) throws IOException;
+
+        void flush() throws IOException;
+
+        // Frames already written must still be sent before the transport is closed
+        void close();
+    }
+
+    private static class GrpcStream extends HTTP2.Stream {
+        String path;
+        ServiceMethodDefinition method;
+        ProtoMessage request;
+        int requestCount;
+        final MessageDeframer deframer;
+        // Calls of streaming handlers get their requests through the queue instead of request
+        GrpcServer.StreamingHandler<?, ?> streamingHandler;
+        BlockingQueue<Object> requests;
+
+        // Guarded by the connection
+        int receiveWindow;
+        int sendWindow;
+        boolean headersSent;
+        CompletableFuture<MessageObject> asyncResponse;
+        // Response message waiting for send window, written up to pendingOffset
+        byte[] pendingData;
+        int pendingOffset;
+
+        GrpcStream(int id, int receiveWindow, int sendWindow) {
+            super(id);
+            this.deframer = new MessageDeframer(id, MAX_MESSAGE_SIZE);
+            this.receiveWindow = receiveWindow;
+            this.sendWindow = sendWindow;
+        }
+    }
+
+    GrpcConnection(GrpcServer server, Output out) {
+        this.server = server;
+        this.out = out;
+        this.pool = server.isMessagePooling() ? new MessagePool(server.getProtocolBuffers()) : null;
+        this.windowUpdateRatio = server.getWindowUpdateRatio();
+        this.adaptiveWindow = server.isAdaptiveWindow();
+        this.receiveWindowSize = server.getInitialWindowSize();
+    }
+
+    public void start() throws IOException {
+        System.err.println("INFO: Sending settings frame");
+
+        writeFrame(new HTTP2.Frame(HTTP2.FRAME_TYPE_SETTINGS, 0x0, 0x0, createSettingsFrameData()));
+        // SETTINGS only cover stream windows, the connection window starts at the default
+        if (receiveWindowSize > receiveWindow) {
+            writeWindowUpdate(0, receiveWindowSize - receiveWindow);
+            receiveWindow = receiveWindowSize;
+        }
+        flush();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Consumes the preface and every complete frame in the buffer, partial frames are left in place.
+    // Frames written in response are flushed together once the whole buffer is processed.
+    public void receive(ByteBuffer in) throws IOException {
+        receiveFrames(in);
+        flush();
+    }
+
+    private void receiveFrames(ByteBuffer in) throws IOException {
+        if (!prefaceReceived) {
+            if (in.remaining() < HTTP2.EXPECTED_PREFACE.length) {
+                return;
+            }
+
+            byte[] preface = new byte[HTTP2.EXPECTED_PREFACE.length];
+            in.get(preface);
+            if (!Arrays.equals(preface, HTTP2.EXPECTED_PREFACE)) {
+                System.err.println("ERROR: Invalid preface");
+                close();
+                return;
+            }
+
+            prefaceReceived = true;
+            System.err.println("INFO: Connection established");
+        }
+
+        while (!closed && in.remaining() >= HTTP2.FRAME_HEADER_LENGTH) {
+            int length = HTTP2.peekFrameLength(in);
+            if (length > MAX_FRAME_SIZE) {
+                sendGoAwayFrame(HTTP2.ERROR_FRAME_SIZE_ERROR, "Frame too large");
+                close();
+                return;
+            }
+            if (in.remaining() < HTTP2.FRAME_HEADER_LENGTH + length) {
+                return;
+            }
+
+            frame.decode(in);
+            if (LOG_FRAMES) {
+                logFrameDetails(frame);
+            }
+
+            try {
+                handleFrame(frame);
+            } catch (HTTP2.ProtocolException e) {
+                if (e.streamId == 0) {
+                    sendGoAwayFrame(e.errorCode, e.getMessage());
+                    close();
+                    return;
+                }
+                resetStream(e.streamId, e.errorCode);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                System.err.println("ERROR: Handling frame : " + e.getMessage());
+                sendGoAwayFrame(HTTP2.ERROR_INTERNAL_ERROR, "Internal error");
+                close();
+                return;
+            }
+        }
+    }
+
+    // Called by the transport when nothing was read for IDLE_TIMEOUT_MS
+    public void onIdleTimeout() throws IOException {
+        if (!closed && streams.isEmpty()) {
+            System.err.println("INFO: Closing idle connection");
+            sendGoAwayFrame(HTTP2.ERROR_NO_ERROR, "Idle timeout");
+            close();
+        }
+    }
+
+    private void handleFrame(HTTP2.Frame frame) throws Exception {
+        if (pendingHeaderBlock != null) {
+            onContinuation(frame);
+            return;
+        }
+
+        switch (frame.type) {
+            case HTTP2.FRAME_TYPE_HEADERS:
+                frame.removePadding();
+                if ((frame.flag & HTTP2.FLAG_END_HEADERS) == 0) {
+                    pendingHeadersStreamId = frame.streamId;
+                    pendingHeadersFlag = frame.flag;
+                    pendingHeaderBlock = new ByteArrayOutputStream();
+                    Utils.write(pendingHeaderBlock, frame.payload);
+                    break;
+                }
+                onHeaders(frame.streamId, frame.flag, frame.payload);
+                break;
+            case HTTP2.FRAME_TYPE_DATA:
+                onData(frame);
+                break;
+            case HTTP2.FRAME_TYPE_SETTINGS:
+                if ((frame.flag & HTTP2.FLAG_ACK) != 0) {
+                    System.err.println("INFO: Received settings acknowledgment");
+                } else {
+                    onSettings(frame);
+                    writeFrame(new HTTP2.Frame(HTTP2.FRAME_TYPE_SETTINGS, HTTP2.FLAG_ACK, 0x0));
+                }
+                break;
+            case HTTP2.FRAME_TYPE_PING:
+                if ((frame.flag & HTTP2.FLAG_ACK) == 0) {
+                    // Encoded right away, while the payload view is still valid
+                    frame.flag = HTTP2.FLAG_ACK;
+                    writeFrame(frame);
+                } else if (bdpPingPending && frame.length() == 8 && frame.payload.getLong(frame.payload.position()) == BDP_PING_DATA) {
+                    onBdpPingAck();
+                }
+                break;
+            case HTTP2.FRAME_TYPE_GOAWAY: {
+                if (frame.length() < 8) {
+                    throw new HTTP2.ProtocolException(HTTP2.ERROR_FRAME_SIZE_ERROR, 0, "Invalid GOAWAY frame");
+                }
+                int lastStream = frame.payload.getInt(frame.payload.position()) & 0x7FFFFFFF;
+                int errorCode = frame.payload.getInt(frame.payload.position() + 4);
+                byte[] debugData = new byte[frame.length() - 8];
+                frame.payload.get(frame.payload.position() + 8, debugData);
+                System.err.println("INFO: GOAWAY frame received : " + lastStream + " : " + errorCode + " : " + new String(debugData));
+                goAwayReceived = true;
+                if (streams.isEmpty()) {
+                    close();
+                }
+            }
+            break;
+            case HTTP2.FRAME_TYPE_RST_STREAM: {
+                GrpcStream stream = streams.get(frame.streamId);
+                if (stream != null) {
+                    stream.reset();
+                    removeStream(stream);
+                    wakeCall(stream);
+                }
+            }
+            break;
+            case HTTP2.FRAME_TYPE_WINDOW_UPDATE:
+                onWindowUpdate(frame);
+                break;
+            case HTTP2.FRAME_TYPE_PRIORITY:
+                break;
+            case HTTP2.FRAME_TYPE_CONTINUATION:
+                throw new HTTP2.ProtocolException(HTTP2.ERROR_PROTOCOL_ERROR, 0, "Unexpected CONTINUATION frame");
+            default:
+                // Unknown frame types must be ignored
+                System.err.println("INFO: Ignoring unknown frame type " + frame.type);
+                break;
+        }
+    }
+
+    private void onContinuation(HTTP2.Frame frame) throws Exception {
+        if (frame.type != HTTP2.FRAME_TYPE_CONTINUATION || frame.streamId != pendingHeadersStreamId) {
+            throw new HTTP2.ProtocolException(HTTP2.ERROR_PROTOCOL_ERROR, 0, "Expected CONTINUATION frame");
+        }
+
+        Utils.write(pendingHeaderBlock, frame.payload);
+        if ((frame.flag & HTTP2.FLAG_END_HEADERS) != 0) {
+            byte[] headerBlock = pendingHeaderBlock.toByteArray();
+            pendingHeaderBlock = null;
+            onHeaders(pendingHeadersStreamId, pendingHeadersFlag, ByteBuffer.wrap(headerBlock));
+        }
+    }
+
+    private void onSettings(HTTP2.Frame frame) throws Exception {
+        if (frame.streamId != 0 || frame.length() % 6 != 0) {
+            throw new HTTP2.ProtocolException(HTTP2.ERROR_FRAME_SIZE_ERROR, 0, "Invalid SETTINGS frame");
+        }
+
+        int position = frame.payload.position();
+        for (int i = position; i < frame.payload.limit(); i += 6) {
+            int id = frame.payload.getShort(i) & 0xffff;
+            int value = frame.payload.getInt(i + 2);
+            if (id == HTTP2.SETTINGS_HEADER_TABLE_SIZE) {
+                // The encoder is only used while holding the write lock
+                writeLock.lock();
+                try {
+                    encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                } finally {
+                    writeLock.unlock();
+                }
+            } else if (id == HTTP2.SETTINGS_INITIAL_WINDOW_SIZE) {
+                if (value < 0) {
+                    throw new HTTP2.ProtocolException(HTTP2.ERROR_FLOW_CONTROL_ERROR, 0, "Invalid initial window size");
+                }
+                writeLock.lock();
+                try {
+                    // Applies to the windows of open streams too, RFC 7540 Section 6.9.2
+                    int delta = value - initialSendWindow;
+                    initialSendWindow = value;
+                    for (GrpcStream stream : streams.values()) {
+                        if ((long) stream.sendWindow + delta > Integer.MAX_VALUE) {
+                            throw new HTTP2.ProtocolException(HTTP2.ERROR_FLOW_CONTROL_ERROR, 0, "Window size overflow");
+                        }
+                        stream.sendWindow += delta;
+                    }
+                    for (GrpcStream stream : streams.values()) {
+                        resumePending(stream);
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+            } else if (id == HTTP2.SETTINGS_MAX_FRAME_SIZE) {
+                if (value < HTTP2.DEFAULT_MAX_FRAME_SIZE || value > HTTP2.MAX_MAX_FRAME_SIZE) {
+                    throw new HTTP2.ProtocolException(HTTP2.ERROR_PROTOCOL_ERROR, 0, "Invalid max frame size");
+                }
+                writeLock.lock();
+                try {
+                    maxSendFrameSize = value;
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        }
+    }
+
+    private void onWindowUpdate(HTTP2.Frame frame) throws Exception {
+        if (frame.length() != 4) {
+            throw new HTTP2.ProtocolException(HTTP2.ERROR_FRAME_SIZE_ERROR, 0, "Invalid WINDOW_UPDATE frame");
+        }
+        int increment = frame.payload.getInt(frame.payload.position()) & 0x7FFFFFFF;
+        if (increment == 0) {
+            throw new HTTP2.ProtocolException(HTTP2.ERROR_PROTOCOL_ERROR, frame.streamId, "Window increment of 0");
+        }
+
+        writeLock.lock();
+        try {
+            if (frame.streamId == 0) {
+                if ((long) sendWindow + increment > Integer.MAX_VALUE) {
+                    throw new HTTP2.ProtocolException(HTTP2.ERROR_FLOW_CONTROL_ERROR, 0, "Window size overflow");
+                }
+                sendWindow += increment;
+                for (GrpcStream stream : streams.values()) {
+                    resumePending(stream);
+                }
+                return;
+            }
+
+            // Updates for streams that are already gone are expected and ignored
+            GrpcStream stream = streams.get(frame.streamId);
+            if (stream == null) {
+                return;
+            }
+            if ((long) stream.sendWindow + increment > Integer.MAX_VALUE) {
+                throw new HTTP2.ProtocolException(HTTP2.ERROR_FLOW_CONTROL_ERROR, stream.id, "Window size overflow");
+            }
+            stream.sendWindow += increment;
+            resumePending(stream);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void onHeaders(int streamId, int flag, ByteBuffer headerBlock) throws Exception {
+        List<String[]> headers;
+        try {
+            headers = decoder.decode(headerBlock);
+        } catch (Exception e) {
+            // The decoder's table can no longer be trusted, RFC 7540 Section 4.3
+            throw new HTTP2.ProtocolException(HTTP2.ERROR_COMPRESSION_ERROR, 0, "Header decoding failed : " + e.getMessage());
+        }
+        boolean endStream = (flag & HTTP2.FLAG_END_STREAM) != 0;
+
+        GrpcStream stream = streams.get(streamId);
+        if (stream != null) {
+            stream.receiveHeaders(endStream);
+            if (endStream) {
+                onRemoteEnd(stream);
+            }
+            return;
+        }
+
+        if (streamId % 2 == 0 || streamId <= lastStreamId) {
+            throw new HTTP2.ProtocolException(HTTP2.ERROR_PROTOCOL_ERROR, 0, "Invalid stream id " + streamId);
+        }
+        lastStreamId = streamId;
+
+        if (streams.size() >= MAX_CONCURRENT_STREAMS) {
+            throw new HTTP2.ProtocolException(HTTP2.ERROR_REFUSED_STREAM, streamId, "Too many streams");
+        }
+
+        writeLock.lock();
+        try {
+            stream = new GrpcStream(streamId, receiveWindowSize, initialSendWindow);
+        } finally {
+            writeLock.unlock();
+        }
+        stream.receiveHeaders(endStream);
+        streams.put(stream.id, stream);
+
+        for (String[] header : headers) {
+            if (header[0].equals(":path")) {
+                stream.path = header[1];
+                stream.method = server.getMethod(stream.path);
+                break;
+            }
+        }
+
+        if (stream.method == null) {
+            sendTrailersOnly(stream, GRPC_STATUS_UNIMPLEMENTED, "Method not found");
+            return;
+        }
+
+        // Streaming handlers run from the start of the call, requests are handed to them as they come
+        if (stream.method.clientStreaming || stream.method.serverStreaming) {
+            stream.streamingHandler = server.getStreamingHandler(stream.path);
+            if (stream.streamingHandler == null) {
+                sendTrailersOnly(stream, GRPC_STATUS_UNIMPLEMENTED, "Handler not found");
+                return;
+            }
+            stream.requests = new LinkedBlockingQueue<>();
+            GrpcStream call = stream;
+            if (!server.dispatchStreaming(() -> handleStreamingCall(call))) {
+                sendTrailersOnly(stream, GRPC_STATUS_RESOURCE_EXHAUSTED, "Too many streaming calls");
+                return;
+            }
+        }
+
+        if (endStream) {
+            onRemoteEnd(stream);
+        }
+    }
+
+    private void onData(HTTP2.Frame frame) throws Exception {
+        // Counts against the connection window whatever becomes of the frame, RFC 7540 Section 6.9
+        int length = frame.length();
+        if (length > receiveWindow) {
+            throw new HTTP2.ProtocolException(HTTP2.ERROR_FLOW_CONTROL_ERROR, 0, "Connection receive window exceeded");
+        }
+        receiveWindow -= length;
+        if (adaptiveWindow) {
+            sampleBandwidth(length);
+        }
+        if (isWindowUpdateDue(receiveWindow)) {
+            writeWindowUpdate(0, receiveWindowSize - receiveWindow);
+            receiveWindow = receiveWindowSize;
+        }
+
+        frame.removePadding();
+
+        GrpcStream stream = streams.get(frame.streamId);
+        if (stream == null) {
+            if (frame.streamId == 0 || frame.streamId > lastStreamId) {
+                throw new HTTP2.ProtocolException(HTTP2.ERROR_PROTOCOL_ERROR, 0, "DATA on idle stream " + frame.streamId);
+            }
+            // Stream was already closed by us, late frames are ignored
+            return;
+        }
+
+        boolean endStream = (frame.flag & HTTP2.FLAG_END_STREAM) != 0;
+        stream.receiveData(endStream);
+
+        writeLock.lock();
+        try {
+            if (length > stream.receiveWindow) {
+                throw new HTTP2.ProtocolException(HTTP2.ERROR_FLOW_CONTROL_ERROR, stream.id, "Stream receive window exceeded");
+            }
+            stream.receiveWindow -= length;
+            // Nothing more comes once the client is done sending, and a streaming handler that is
+            // behind on its requests gets the window back once it has read them
+            if (!endStream && (stream.requests == null || stream.requests.isEmpty()) && isWindowUpdateDue(stream.receiveWindow)) {
+                writeWindowUpdate(stream.id, receiveWindowSize - stream.receiveWindow);
+                stream.receiveWindow = receiveWindowSize;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+
+        if (stream.method != null) {
+            // A message may span several frames and a frame may carry several messages
+            while (frame.payload.hasRemaining()) {
+                byte[] message;
+                try {
+                    message = stream.deframer.read(frame.payload);
+                } catch (HTTP2.ProtocolException e) {
+                    throw e;
+                } catch (Exception e) {
+                    sendTrailersOnly(stream, GRPC_STATUS_RESOURCE_EXHAUSTED, e.getMessage());
+                    return;
+                }
+                if (message == null) {
+                    break;
+                }
+                if (stream.requestCount > 0 && !stream.method.clientStreaming) {
+                    sendTrailersOnly(stream, GRPC_STATUS_INTERNAL, "More than one request message for a unary call");
+                    return;
+                }
+                ProtoMessage request = parseRequest(stream, message);
+                if (request == null) {
+                    return;
+                }
+                stream.requestCount++;
+                if (stream.requests != null) {
+                    stream.requests.add(request);
+                } else {
+                    stream.request = request;
+                }
+            }
+
+            if (endStream && !stream.deframer.isIdle()) {
+                sendTrailersOnly(stream, GRPC_STATUS_INTERNAL, "Incomplete request message");
+                return;
+            }
+        }
+
+        if (endStream) {
+            onRemoteEnd(stream);
+        }
+    }
+
+    // Sends the error status and returns null when the message does not decode. Requests of
+    // streaming calls are not pooled, their handler decides how long it keeps them.
+    private ProtoMessage parseRequest(GrpcStream stream, byte[] message) throws IOException {
+        try {
+            GrpcServer.TypedHandler<?, ?> typedHandler = server.getTypedHandler(stream.path);
+            if (stream.streamingHandler != null && stream.streamingHandler.parser != null) {
+                return stream.streamingHandler.parser.parseFrom(message, 0, message.length);
+            } else if (typedHandler != null) {
+                return typedHandler.parser.parseFrom(message, 0, message.length);
+            } else if (pool != null && stream.streamingHandler == null) {
+                MessageObject request = pool.acquire(stream.method.inputIdentifier);
+                request.parse(message, 0, message.length, server.isLazyDecoding());
+                return request;
+            }
+            return new MessageObject(server.getProtocolBuffers(), stream.method.inputIdentifier, message, 0, message.length, server.isLazyDecoding());
+        } catch (Exception e) {
+            System.err.println("ERROR: Parsing request : " + e.getMessage());
+            sendTrailersOnly(stream, GRPC_STATUS_INTERNAL, "Invalid request message");
+            return null;
+        }
+    }
+
+    // Received data is consumed as it arrives, the window it used is handed back in batches
+    private boolean isWindowUpdateDue(int window) {
+        int consumed = receiveWindowSize - window;
+        return consumed > 0 && consumed >= receiveWindowSize * windowUpdateRatio;
+    }
+
+    // Bytes received between sending a PING and its ACK approximate the bandwidth delay product.
+    // A new measurement starts with the first DATA frame once the previous one ended and
+    // BDP_PING_INTERVAL_MS passed since it started, none once the windows can not grow further.
+    private void sampleBandwidth(int length) throws IOException {
+        if (!bdpPingPending) {
+            long now = System.currentTimeMillis();
+            if (receiveWindowSize >= MAX_ADAPTIVE_WINDOW_SIZE || now - bdpPingSentAt < BDP_PING_INTERVAL_MS) {
+                return;
+            }
+            bdpPingPending = true;
+            bdpPingSentAt = now;
+            bdpSample = 0;
+            writeFrame(new HTTP2.Frame(HTTP2.FRAME_TYPE_PING, 0x0, 0x0, ByteBuffer.allocate(8).putLong(BDP_PING_DATA).array()));
+        }
+        bdpSample += length;
+    }
+
+    // Windows are doubled past the sample while a round trip uses most of them, stream windows
+    // grow along through SETTINGS and the connection window through WINDOW_UPDATE
+    private void onBdpPingAck() throws IOException {
+        bdpPingPending = false;
+        if (bdpSample * 3L < receiveWindowSize * 2L || receiveWindowSize >= MAX_ADAPTIVE_WINDOW_SIZE) {
+            return;
+        }
+
+        int size = (int) Math.min(bdpSample * 2L, MAX_ADAPTIVE_WINDOW_SIZE);
+        if (size <= receiveWindowSize) {
+            return;
+        }
+        int delta = size - receiveWindowSize;
+        receiveWindow += delta;
+        writeLock.lock();
+        try {
+            receiveWindowSize = size;
+            for (GrpcStream stream : streams.values()) {
+                stream.receiveWindow += delta;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+
+        writeFrame(new HTTP2.Frame(HTTP2.FRAME_TYPE_SETTINGS, 0x0, 0x0, ByteBuffer.allocate(6).putShort((short) HTTP2.SETTINGS_INITIAL_WINDOW_SIZE).putInt(size).array()));
+        writeWindowUpdate(0, delta);
+        System.err.println("INFO: Receive window grown to " + size);
+    }
+
+    private void onRemoteEnd(GrpcStream stream) throws IOException {
+        if (stream.isClosed()) {
+            removeStream(stream);
+            return;
+        }
+
+        if (stream.requests != null) {
+            if (stream.requestCount == 0 && !stream.method.clientStreaming) {
+                sendTrailersOnly(stream, GRPC_STATUS_INTERNAL, "Missing request message");
+                return;
+            }
+            stream.requests.add(END_OF_REQUESTS);
+            return;
+        }
+
+        GrpcAsyncHandler asyncHandler = server.getTypedHandler(stream.path) == null ? server.getAsyncHandler(stream.path) : null;
+        if (asyncHandler != null) {
+            if (!server.dispatchAsync(() -> handleAsyncRequest(stream, asyncHandler))) {
+                sendTrailersOnly(stream, GRPC_STATUS_RESOURCE_EXHAUSTED, "Too many concurrent calls");
+            }
+            return;
+        }
+
+        if (!server.dispatch(() -> handleRequest(stream))) {
+            sendTrailersOnly(stream, GRPC_STATUS_RESOURCE_EXHAUSTED, "Too many concurrent calls");
+        }
+    }
+
+    private void handleRequest(GrpcStream stream) {
+        ProtoMessage response = null;
+        try {
+            try {
+                if (stream.request == null) {
+                    sendTrailersOnly(stream, GRPC_STATUS_INTERNAL, "Missing request message");
+                    return;
+                }
+
+                GrpcServer.TypedHandler<?, ?> typedHandler = server.getTypedHandler(stream.path);
+                GrpcHandler handler = server.getHandler(stream.path);
+                if (typedHandler != null) {
+                    response = typedHandler.apply(stream.request);
+                } else if (handler != null) {
+                    response = handler.apply((MessageObject) stream.request);
+                } else {
+                    sendTrailersOnly(stream, GRPC_STATUS_UNIMPLEMENTED, "Handler not found");
+                    return;
+                }
+
+                sendResponse(stream, encodeMessage(response));
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                System.err.println("ERROR: Handler failed : " + e.getMessage());
+                sendTrailersOnly(stream, GRPC_STATUS_INTERNAL, "Internal error");
+            } finally {
+                flush();
+            }
+        } catch (IOException e) {
+            System.err.println("ERROR: Writing response : " + e.getMessage());
+            close();
+        } finally {
+            if (pool != null) {
+                recycle(stream.request);
+                if (response != stream.request) {
+                    recycle(response);
+                }
+                stream.request = null;
+            }
+        }
+    }
+
+    // Starts the call and returns the future that writes its response, or null when the call is
+    // already over. The handler thread is free once the handler returns.
+    private CompletableFuture<?> handleAsyncRequest(GrpcStream stream, GrpcAsyncHandler handler) {
+        CompletableFuture<MessageObject> future;
+        try {
+            if (stream.request == null) {
+                try {
+                    sendTrailersOnly(stream, GRPC_STATUS_INTERNAL, "Missing request message");
+                    flush();
+                } catch (IOException e) {
+                    System.err.println("ERROR: Writing response : " + e.getMessage());
+                    close();
+                }
+                return null;
+            }
+
+            future = handler.apply((MessageObject) stream.request);
+            if (future == null) {
+                throw new Exception("No future returned");
+            }
+        } catch (Exception e) {
+            completeAsyncRequest(stream, null, e);
+            return null;
+        }
+
+        // A reset that came in while the handler ran finds no future to cancel
+        boolean cancelled;
+        writeLock.lock();
+        try {
+            stream.asyncResponse = future;
+            cancelled = stream.isClosed() || closed;
+        } finally {
+            writeLock.unlock();
+        }
+        if (cancelled) {
+            future.cancel(false);
+        }
+        return future.whenComplete((response, failure) -> completeAsyncRequest(stream, response, failure));
+    }
+
+    // Runs on whichever thread completed the future
+    private void completeAsyncRequest(GrpcStream stream, MessageObject response, Throwable failure) {
+        if (failure instanceof CompletionException && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        boolean cancelled = failure instanceof CancellationException;
+        try {
+            try {
+                if (cancelled) {
+                    if (!closed) {
+                        sendTrailersOnly(stream, GRPC_STATUS_CANCELLED, "Call cancelled");
+                    }
+                } else if (failure != null) {
+                    System.err.println("ERROR: Handler failed : " + failure.getMessage());
+                    sendTrailersOnly(stream, GRPC_STATUS_INTERNAL, "Internal error");
+                } else {
+                    sendResponse(stream, encodeMessage(response));
+                }
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                System.err.println("ERROR: Handler failed : " + e.getMessage());
+                sendTrailersOnly(stream, GRPC_STATUS_INTERNAL, "Internal error");
+            } finally {
+                flush();
+            }
+        } catch (IOException e) {
+            System.err.println("ERROR: Writing response : " + e.getMessage());
+            close();
+        } finally {
+            // A cancelled future completes while the handler may still be working on the request,
+            // its messages are left to the garbage collector instead of the pool
+            if (pool != null && !cancelled) {
+                recycle(stream.request);
+                if (response != stream.request) {
+                    recycle(response);
+                }
+            }
+            stream.request = null;
+        }
+    }
+
+    private void handleStreamingCall(GrpcStream stream) {
+        StreamingCall call = new StreamingCall(stream);
+        try {
+            try {
+                stream.streamingHandler.apply(call, call);
+                sendTrailersOnly(stream, GRPC_STATUS_OK, "OK");
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                // Failures of calls that were cancelled or lost their connection are expected
+                if (!stream.isClosed() && !closed) {
+                    System.err.println("ERROR: Handler failed : " + e.getMessage());
+                }
+                sendTrailersOnly(stream, GRPC_STATUS_INTERNAL, "Internal error");
+            } finally {
+                flush();
+            }
+        } catch (IOException e) {
+            System.err.println("ERROR: Writing response : " + e.getMessage());
+            close();
+        }
+    }
+
+    // Both ends of a streaming call as seen by its handler, used from the handler thread only
+    private class StreamingCall implements GrpcStreamingHandler.Reader<ProtoMessage>, GrpcStreamingHandler.Writer<ProtoMessage> {
+        private final GrpcStream stream;
+        private boolean ended;
+
+        StreamingCall(GrpcStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public ProtoMessage read() throws Exception {
+            if (ended) {
+                return null;
+            }
+
+            Object request = stream.requests.take();
+            if (request == CANCELLED) {
+                stream.requests.add(CANCELLED);
+                throw new Exception("Call cancelled");
+            }
+            if (request == END_OF_REQUESTS) {
+                ended = true;
+                return null;
+            }
+
+            // Caught up, the window held back for the queued requests can go back to the client
+            if (stream.requests.isEmpty()) {
+                returnReceiveWindow(stream);
+            }
+            return (ProtoMessage) request;
+        }
+
+        @Override
+        public void write(ProtoMessage response) throws Exception {
+            byte[] message = encodeMessage(response);
+            writeLock.lock();
+            try {
+                if (stream.isClosed() || closed) {
+                    throw new Exception("Call cancelled");
+                }
+                writeResponseHeaders(stream);
+
+                stream.pendingData = message;
+                stream.pendingOffset = 0;
+                // The reading thread writes the rest as windows open and wakes us once it is out
+                if (!writePending(stream)) {
+                    while (stream.pendingData != null) {
+                        flush();
+                        sendWindowOpened.await();
+                        if (stream.isClosed() || closed) {
+                            throw new Exception("Call cancelled");
+                        }
+                    }
+                }
+                // Handlers may take their time between messages, each one goes out as it is written
+                flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private void returnReceiveWindow(GrpcStream stream) throws IOException {
+        writeLock.lock();
+        try {
+            if (!stream.isClosed() && isWindowUpdateDue(stream.receiveWindow)) {
+                writeWindowUpdate(stream.id, receiveWindowSize - stream.receiveWindow);
+                stream.receiveWindow = receiveWindowSize;
+                flush();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Streaming handlers blocked on the call notice it is over and async handlers see their future
+    // cancelled
+    private void wakeCall(GrpcStream stream) {
+        if (stream.requests != null) {
+            stream.requests.add(CANCELLED);
+        }
+        CompletableFuture<MessageObject> future;
+        writeLock.lock();
+        try {
+            sendWindowOpened.signalAll();
+            future = stream.asyncResponse;
+        } finally {
+            writeLock.unlock();
+        }
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    // Length prefixed, sized first so the message is written once right behind its prefix
+    private static byte[] encodeMessage(ProtoMessage response) throws Exception {
+        int size = response.getSerializedSize();
+        byte[] message = new byte[MessageDeframer.PREFIX_LENGTH + size];
+        message[0] = 0; // No compression
+        message[1] = (byte) (size >>> 24);
+        message[2] = (byte) (size >>> 16);
+        message[3] = (byte) (size >>> 8);
+        message[4] = (byte) size;
+        response.writeTo(message, MessageDeframer.PREFIX_LENGTH);
+        return message;
+    }
+
+    private void recycle(ProtoMessage message) {
+        if (message instanceof MessageObject) {
+            pool.release((MessageObject) message);
+        }
+    }
+
+    // The message is written in frames of at most the peer's frame size as far as the send
+    // windows allow, the rest is parked on the stream and written as the peer opens its windows
+    private void sendResponse(GrpcStream stream, byte[] message) throws IOException {
+        writeLock.lock();
+        try {
+            if (stream.isClosed()) {
+                return;
+            }
+
+            writeResponseHeaders(stream);
+            stream.pendingData = message;
+            stream.pendingOffset = 0;
+            if (!writePending(stream)) {
+                return;
+            }
+            writeTrailers(stream, GRPC_STATUS_OK, "OK");
+        } finally {
+            writeLock.unlock();
+        }
+
+        finishStream(stream);
+    }
+
+    private void writeResponseHeaders(GrpcStream stream) throws IOException {
+        writeLock.lock();
+        try {
+            if (!stream.headersSent) {
+                stream.headersSent = true;
+                writeFrame(new HTTP2.Frame(
+                    HTTP2.FRAME_TYPE_HEADERS,
+                    HTTP2.FLAG_END_HEADERS,
+                    stream.id,
+                    createResponseHeaders()));
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Encoded only when written, header blocks must reach the peer in the order they were encoded
+    private void writeTrailers(GrpcStream stream, int status, String message) throws IOException {
+        writeLock.lock();
+        try {
+            writeFrame(new HTTP2.Frame(
+                HTTP2.FRAME_TYPE_HEADERS,
+                HTTP2.FLAG_END_HEADERS | HTTP2.FLAG_END_STREAM,
+                stream.id,
+                createResponseTrailers(status, message)));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Writes what the send windows allow of the stream's pending message, returns true once all
+    // of it is written
+    private boolean writePending(GrpcStream stream) throws IOException {
+        writeLock.lock();
+        try {
+            byte[] data = stream.pendingData;
+            while (stream.pendingOffset < data.length) {
+                int remaining = data.length - stream.pendingOffset;
+                // Waits for a full frame of connection window, streams would otherwise split every
+                // small increment into tiny frames between them
+                if (sendWindow < Math.min(remaining, HTTP2.DEFAULT_MAX_FRAME_SIZE) || stream.sendWindow <= 0) {
+                    return false;
+                }
+
+                int length = Math.min(Math.min(remaining, maxSendFrameSize), Math.min(sendWindow, stream.sendWindow));
+
+                HTTP2.Frame frame = new HTTP2.Frame(HTTP2.FRAME_TYPE_DATA, 0x0, stream.id);
+                frame.payload = ByteBuffer.wrap(data, stream.pendingOffset, length);
+                writeFrame(frame);
+                stream.pendingOffset += length;
+                sendWindow -= length;
+                stream.sendWindow -= length;
+            }
+            stream.pendingData = null;
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Called when a send window grew. Unary responses are finished here, streaming handlers wait
+    // for their message to be written and carry on themselves.
+    private void resumePending(GrpcStream stream) throws IOException {
+        writeLock.lock();
+        try {
+            if (stream.pendingData == null || !writePending(stream)) {
+                return;
+            }
+            if (stream.streamingHandler != null) {
+                sendWindowOpened.signalAll();
+                return;
+            }
+            writeTrailers(stream, GRPC_STATUS_OK, "OK");
+            finishStream(stream);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Ends the call with the status, in the trailers when response headers already went out
+    private void sendTrailersOnly(GrpcStream stream, int status, String message) throws IOException {
+        writeLock.lock();
+        try {
+            if (stream.isClosed()) {
+                return;
+            }
+            if (stream.headersSent) {
+                writeTrailers(stream, status, message);
+                finishStream(stream);
+                return;
+            }
+            stream.headersSent = true;
+
+            List<String[]> headers = new ArrayList<>();
+            headers.add(new String[] { ":status", "200" });
+            headers.add(new String[] { "content-type", "application/grpc" });
+            headers.add(new String[] { "grpc-status", String.valueOf(status) });
+            headers.add(new String[] { "grpc-message", percentEncode(message) });
+
+            writeFrame(new HTTP2.Frame(
+                HTTP2.FRAME_TYPE_HEADERS,
+                HTTP2.FLAG_END_HEADERS | HTTP2.FLAG_END_STREAM,
+                stream.id,
+                encodeTrailers(headers, status)));
+        } finally {
+            writeLock.unlock();
+        }
+
+        finishStream(stream);
+    }
+
+    private void finishStream(GrpcStream stream) throws IOException {
+        stream.sendEndStream();
+
+        // Client has not finished sending, there is nothing left for it to tell us
+        if (!stream.isClosed()) {
+            stream.reset();
+            writeRstStream(stream.id, HTTP2.ERROR_NO_ERROR);
+        }
+
+        removeStream(stream);
+        wakeCall(stream);
+    }
+
+    private void resetStream(int streamId, int errorCode) throws IOException {
+        GrpcStream stream = streams.get(streamId);
+        if (stream != null) {
+            stream.reset();
+            removeStream(stream);
+            wakeCall(stream);
+        }
+        writeRstStream(streamId, errorCode);
+    }
+
+    private void removeStream(GrpcStream stream) {
+        streams.remove(stream.id);
+        if (goAwayReceived && streams.isEmpty()) {
+            close();
+        }
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        try {
+            flush();
+        } catch (IOException e) {
+            // Connection is going away regardless
+        }
+
+        for (GrpcStream stream : streams.values()) {
+            wakeCall(stream);
+        }
+
+        try {
+            out.close();
+        } catch (Exception e) {
+            System.err.println("ERROR: Unable to close connection : " + e.getMessage());
+        }
+    }
+
+    // Frames from all streams are packed into the current pooled buffer, which is handed to
+    // the transport once full or on flush, a full buffer is the byte threshold for flushing
+    private void writeFrame(HTTP2.Frame frame) throws IOException {
+        writeLock.lock();
+        try {
+            int length = HTTP2.FRAME_HEADER_LENGTH + frame.length();
+            if (writeBuffer != null && writeBuffer.remaining() < length) {
+                flush();
+            }
+
+            if (writeBuffer == null) {
+                writeBuffer = BufferPool.acquire(length);
+            }
+            frame.encode(writeBuffer);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void flush() throws IOException {
+        writeLock.lock();
+        try {
+            if (writeBuffer == null) {
+                return;
+            }
+
+            ByteBuffer buffer = writeBuffer;
+            writeBuffer = null;
+            buffer.flip();
+            out.write(buffer);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        writeFrame(new HTTP2.Frame(HTTP2.FRAME_TYPE_WINDOW_UPDATE, 0x0, streamId, Utils.unpack(increment, 4)));
+    }
+
+    private void writeRstStream(int streamId, int errorCode) throws IOException {
+        writeFrame(new HTTP2.Frame(HTTP2.FRAME_TYPE_RST_STREAM, 0x0, streamId, Utils.unpack(errorCode, 4)));
+    }
+
+    private void logFrameDetails(HTTP2.Frame frame) {
+        System.err.println("INFO: Frame received "+ frame.type + " : " + frame.flag + " : " + frame.streamId);
+    }
+
+    private void sendGoAwayFrame(int errorCode, String debugData) throws IOException {
+        writeFrame(new HTTP2.Frame(HTTP2.FRAME_TYPE_GOAWAY, 0x0, 0x0, createGoAwayFrameData(lastStreamId, errorCode, debugData)));
+    }
+
+    private byte[] createGoAwayFrameData(int lastStreamId, int errorCode, String debugData) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+
+        try {
+            dos.writeInt(lastStreamId);
+            dos.writeInt(errorCode);
+            dos.write(debugData.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("ERROR: Creating GOAWAY frame data : " + e.getMessage());
+        }
+
+        return baos.toByteArray();
+    }
+
+    private byte[] createSettingsFrameData() throws IOException {
+        ByteArrayOutputStream settingsStream = new ByteArrayOutputStream();
+        settingsStream.write(Utils.unpack(HTTP2.SETTINGS_HEADER_TABLE_SIZE, 2));
+        settingsStream.write(Utils.unpack(HPack.DEFAULT_DYNAMIC_TABLE_SIZE, 4));
+        settingsStream.write(Utils.unpack(HTTP2.SETTINGS_ENABLE_PUSH, 2));
+        settingsStream.write(Utils.unpack(0, 4));
+        settingsStream.write(Utils.unpack(HTTP2.SETTINGS_MAX_CONCURRENT_STREAMS, 2));
+        settingsStream.write(Utils.unpack(MAX_CONCURRENT_STREAMS, 4));
+        settingsStream.write(Utils.unpack(HTTP2.SETTINGS_INITIAL_WINDOW_SIZE, 2));
+        settingsStream.write(Utils.unpack(receiveWindowSize, 4));
+        settingsStream.write(Utils.unpack(HTTP2.SETTINGS_MAX_HEADER_LIST_SIZE, 2));
+        settingsStream.write(Utils.unpack(8192, 4));
+        settingsStream.write(Utils.unpack(HTTP2.SETTINGS_MAX_FRAME_SIZE, 2));
+        settingsStream.write(Utils.unpack(MAX_FRAME_SIZE, 4));
+        return settingsStream.toByteArray();
+    }
+
+    private byte[] createResponseHeaders() throws IOException {
+        List<String[]> headers = new ArrayList<>();
+        headers.add(new String[] { ":status", "200" });
+        headers.add(new String[] { "content-type", "application/grpc" });
+        return encoder.encode(headers);
+    }
+
+    private byte[] createResponseTrailers(int status, String message) throws IOException {
+        List<String[]> headers = new ArrayList<>();
+        headers.add(new String[] { "grpc-status", String.valueOf(status) });
+        headers.add(new String[] { "grpc-message", percentEncode(message) });
+        return encodeTrailers(headers, status);
+    }
+
+    private byte[] encodeTrailers(List<String[]> headers, int status) throws IOException {
+        return (status == GRPC_STATUS_OK) ? encoder.encode(headers) : encoder.encode(headers, ERROR_TRAILERS);
+    }
+
+    // Percent-encodes the UTF-8 bytes of the message outside printable ASCII, and '%' itself,
+    // as the gRPC spec asks of grpc-message
+    static String percentEncode(String message) {
+        int i = 0;
+        while (i < message.length()) {
+            char c = message.charAt(i);
+            if (c < 0x20 || c > 0x7E || c == '%') {
+                break;
+            }
+            i++;
+        }
+        if (i == message.length()) {
+            return message;
+        }
+
+        StringBuilder sb = new StringBuilder(message.length() + 16);
+        sb.append(message, 0, i);
+        for (byte b: message.substring(i).getBytes(StandardCharsets.UTF_8)) {
+            if (b < 0x20 || b > 0x7E || b == '%') {
+                sb.append('%');
+                sb.append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)));
+                sb.append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+            } else {
+                sb.append((char) b);
+            }
+        }
+        return sb.toString();
+    }
+}
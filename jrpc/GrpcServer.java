@@ -1,12 +1,20 @@
 package jrpc;
 
-import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
 
 import jrpc.ProtocolBuffers.Definition;
 import jrpc.ProtocolBuffers.ServiceDefinition;
@@ -15,10 +23,41 @@ import jrpc.ProtocolBuffers.ServiceMethodDefinition;
 public class GrpcServer {
     private static final int PORT = 8080;
     private static final int THREAD_POOL_SIZE = 10;
+    private static final int DEFAULT_EVENT_LOOP_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int DEFAULT_MAX_CONCURRENT_CALLS = 10000;
+    private static final int DEFAULT_MAX_STREAMING_CALLS = 1000;
+
+    public enum Transport {
+        BLOCKING, // Thread per connection
+        NIO,      // Selector event loops shared by all connections
+    }
+
+    public enum ExecutionMode {
+        PLATFORM, // Fixed pool of platform threads for handlers
+        VIRTUAL,  // Virtual thread per connection and per call, requires Java 21+
+    }
 
     private ProtocolBuffers pb;
     private Map<String, GrpcHandler> handlers;
+    private Map<String, TypedHandler<?, ?>> typedHandlers = new HashMap<>();
+    private Map<String, StreamingHandler<?, ?>> streamingHandlers = new HashMap<>();
+    private Map<String, GrpcAsyncHandler> asyncHandlers = new HashMap<>();
     private Map<String, ServiceMethodDefinition> grpcMethods;
+    private Transport transport = Transport.BLOCKING;
+    private int eventLoopCount = DEFAULT_EVENT_LOOP_COUNT;
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+    private int maxConcurrentCalls = DEFAULT_MAX_CONCURRENT_CALLS;
+    private int maxStreamingCalls = DEFAULT_MAX_STREAMING_CALLS;
+    private boolean lazyDecoding = false;
+    private boolean messagePooling = false;
+    private boolean compiledCodecs = false;
+    private int initialWindowSize = HTTP2.DEFAULT_INITIAL_WINDOW_SIZE;
+    private double windowUpdateRatio = 0.5;
+    private boolean adaptiveWindow = false;
+    private ExecutorService handlerExecutor;
+    private ExecutorService streamingExecutor;
+    private Semaphore callPermits;
+    private Semaphore streamingPermits;
 
     public GrpcServer(ProtocolBuffers pb, Map<String, GrpcHandler> handlers) throws Exception {
         this.pb = pb;
@@ -36,271 +75,395 @@ public class GrpcServer {
         }
     }
 
+    // Handlers on generated classes, their requests are parsed by the generated parser instead of
+    // MessageObject. They take precedence over a dynamic handler for the same path.
+    public <Q extends ProtoMessage, R extends ProtoMessage> void addHandler(String path, ProtoMessage.Parser<Q> parser, GrpcTypedHandler<Q, R> handler) throws Exception {
+        ServiceMethodDefinition method = grpcMethods.get(path);
+        if (method == null) {
+            throw new Exception("Unknown method: " + path);
+        }
+        if (method.clientStreaming || method.serverStreaming) {
+            throw new Exception("Streaming method needs a streaming handler: " + path);
+        }
+        typedHandlers.put(path, new TypedHandler<>(parser, handler));
+    }
+
+    // Handler for a method with stream requests or responses on MessageObject messages
+    public void addStreamingHandler(String path, GrpcStreamingHandler<MessageObject, MessageObject> handler) throws Exception {
+        addStreamingHandler(path, null, handler);
+    }
+
+    // Streaming handler on generated classes, requests are parsed by the given parser
+    public <Q extends ProtoMessage, R extends ProtoMessage> void addStreamingHandler(String path, ProtoMessage.Parser<Q> parser, GrpcStreamingHandler<Q, R> handler) throws Exception {
+        ServiceMethodDefinition method = grpcMethods.get(path);
+        if (method == null) {
+            throw new Exception("Unknown method: " + path);
+        }
+        if (!method.clientStreaming && !method.serverStreaming) {
+            throw new Exception("Method is not streaming: " + path);
+        }
+        streamingHandlers.put(path, new StreamingHandler<>(parser, handler));
+    }
+
+    // Takes precedence over a dynamic handler for the same path
+    public void addAsyncHandler(String path, GrpcAsyncHandler handler) throws Exception {
+        ServiceMethodDefinition method = grpcMethods.get(path);
+        if (method == null) {
+            throw new Exception("Unknown method: " + path);
+        }
+        if (method.clientStreaming || method.serverStreaming) {
+            throw new Exception("Streaming method needs a streaming handler: " + path);
+        }
+        asyncHandlers.put(path, handler);
+    }
+
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    // Selector threads of the NIO transport, half the processors by default
+    public void setEventLoopCount(int eventLoopCount) {
+        if (eventLoopCount < 1) {
+            throw new IllegalArgumentException("Event loop count must be positive: " + eventLoopCount);
+        }
+        this.eventLoopCount = eventLoopCount;
+    }
+
+    public void setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+    }
+
+    // Calls beyond this limit, across all connections, are rejected with RESOURCE_EXHAUSTED
+    public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+        this.maxConcurrentCalls = maxConcurrentCalls;
+    }
+
+    // Streaming calls hold a thread for as long as the client keeps them open, so they run on
+    // their own threads under this separate limit and never take the handler pool from unary calls
+    public void setMaxStreamingCalls(int maxStreamingCalls) {
+        if (maxStreamingCalls < 1) {
+            throw new IllegalArgumentException("Max streaming calls must be positive: " + maxStreamingCalls);
+        }
+        this.maxStreamingCalls = maxStreamingCalls;
+    }
+
+    // Requests keep strings, bytes, messages and maps encoded until a handler reads them,
+    // for handlers that pass most of a request through
+    public void setLazyDecoding(boolean lazyDecoding) {
+        this.lazyDecoding = lazyDecoding;
+    }
+
+    // Requests and the responses handlers create with request.newMessage() are reset and reused
+    // by their connection once the response is written, handlers must not keep either of them
+    public void setMessagePooling(boolean messagePooling) {
+        this.messagePooling = messagePooling;
+    }
+
+    // Receive window of every connection and stream, smaller windows than the protocol default
+    // are not supported since the client may use the default until it sees our settings
+    public void setInitialWindowSize(int initialWindowSize) {
+        if (initialWindowSize < HTTP2.DEFAULT_INITIAL_WINDOW_SIZE) {
+            throw new IllegalArgumentException("Window size below " + HTTP2.DEFAULT_INITIAL_WINDOW_SIZE + ": " + initialWindowSize);
+        }
+        this.initialWindowSize = initialWindowSize;
+    }
+
+    // WINDOW_UPDATE is sent once this fraction of a receive window is used, lower values mean
+    // more updates and less waiting on high latency links
+    public void setWindowUpdateRatio(double windowUpdateRatio) {
+        if (windowUpdateRatio <= 0 || windowUpdateRatio > 1) {
+            throw new IllegalArgumentException("Window update ratio not in (0, 1]: " + windowUpdateRatio);
+        }
+        this.windowUpdateRatio = windowUpdateRatio;
+    }
+
+    // Receive windows grow with the bandwidth delay product measured by PING round trips,
+    // starting from the initial window size
+    public void setAdaptiveWindow(boolean adaptiveWindow) {
+        this.adaptiveWindow = adaptiveWindow;
+    }
+
+    // Message types of the schema get encoders and decoders compiled for them when the server
+    // starts. Needs a JDK at runtime (a JRE or a jlink image without java.compiler will not do)
+    // and the jrpc classes in a directory or jar on the file system, otherwise a WARN is logged
+    // and the generic encoders and decoders are kept
+    public void setCompiledCodecs(boolean compiledCodecs) {
+        this.compiledCodecs = compiledCodecs;
+    }
+
     public void start() throws Exception {
-        ExecutorService executorService = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+        if (compiledCodecs) {
+            pb.compileCodecs();
+        }
+        callPermits = new Semaphore(maxConcurrentCalls);
+        streamingPermits = new Semaphore(maxStreamingCalls);
+
+        if (executionMode == ExecutionMode.VIRTUAL) {
+            handlerExecutor = newVirtualThreadExecutor();
+            streamingExecutor = newVirtualThreadExecutor();
+        } else {
+            handlerExecutor = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+            streamingExecutor = Executors.newCachedThreadPool();
+        }
+
+        if (transport == Transport.NIO) {
+            new NioTransport(this, PORT, eventLoopCount).start();
+            return;
+        }
+
+        // Connections are long lived, handler work is bounded separately
+        ExecutorService connectionExecutor = (executionMode == ExecutionMode.VIRTUAL)
+                ? newVirtualThreadExecutor()
+                : Executors.newCachedThreadPool();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(PORT));
             System.err.println("INFO: Server is listening on port " + PORT);
 
             while (true) {
-                Socket client = serverSocket.accept();
-                executorService.submit(() -> handleClient(client));
+                SocketChannel client = serverChannel.accept();
+                connectionExecutor.submit(() -> handleClient(client));
             }
         }
     }
 
-    private void handleClient(Socket client) {
-        try {
-            InputStream in = client.getInputStream();
-            OutputStream out = client.getOutputStream();
+    GrpcConnection newConnection(GrpcConnection.Output out) {
+        return new GrpcConnection(this, out);
+    }
 
-            byte[] preface = in.readNBytes(HTTP2.EXPECTED_PREFACE.length);
-            if (!Arrays.equals(preface, HTTP2.EXPECTED_PREFACE)) {
-                System.err.println("ERROR: Invalid preface");
-                return;
-            }
+    ProtocolBuffers getProtocolBuffers() {
+        return pb;
+    }
 
-            System.err.println("INFO: Sending settings frame");
+    boolean isLazyDecoding() {
+        return lazyDecoding;
+    }
 
-            HTTP2.Frame settingsFrame = new HTTP2.Frame(HTTP2.FRAME_TYPE_SETTINGS, 0x0, 0x0);
-            settingsFrame.payload = createSettingsFrameData();
-            settingsFrame.serialize(out);
+    boolean isMessagePooling() {
+        return messagePooling;
+    }
 
-            receiveAcknowledgeFrame(in);
+    int getInitialWindowSize() {
+        return initialWindowSize;
+    }
 
-            System.err.println("INFO: Connection established");
+    double getWindowUpdateRatio() {
+        return windowUpdateRatio;
+    }
 
-            HPack hp = new HPack();
-            List<String[]> headers = new ArrayList<>();
-            boolean terminate = false;
-            int lastStreamId = -1;
+    boolean isAdaptiveWindow() {
+        return adaptiveWindow;
+    }
 
-            // Map to store streamId and grpc method mapping
-            Map<Integer, String> grpcPath = new HashMap<>();
-            Map<Integer, MessageObject> requestMap = new HashMap<>();
+    ServiceMethodDefinition getMethod(String path) {
+        return grpcMethods.get(path);
+    }
 
-            while (!terminate) {
-                HTTP2.Frame frame = new HTTP2.Frame(in);
-                logFrameDetails(frame);
-                
-                int streamId = frame.streamId;
+    GrpcHandler getHandler(String path) {
+        return handlers.get(path);
+    }
 
-                switch (frame.type) {
-                    case HTTP2.FRAME_TYPE_HEADERS: {
-                        headers.addAll(hp.decode(frame.payload));
+    TypedHandler<?, ?> getTypedHandler(String path) {
+        return typedHandlers.get(path);
+    }
 
-                        while ((frame.flag & HTTP2.FLAG_END_HEADERS) == 0) {
-                            headers.addAll(hp.decode(new HTTP2.Frame(in).payload));
-                        }
+    StreamingHandler<?, ?> getStreamingHandler(String path) {
+        return streamingHandlers.get(path);
+    }
 
-                        for (String[] header : headers) {
-                            if (header[0].equals(":path")) {
-                                String path = header[1];
-                                if (!grpcMethods.containsKey(path)) {
-                                    sendGoAwayFrame(out, lastStreamId, HTTP2.ERROR_INTERNAL_ERROR, "Method not found");
-                                    terminate = true;
-                                    break;
-                                }
+    GrpcAsyncHandler getAsyncHandler(String path) {
+        return asyncHandlers.get(path);
+    }
 
-                                grpcPath.put(frame.streamId, path);
-                                break;
-                            }
-                        }
-                    }
-                    break;
+    // Runs the call on the handler executor unless the concurrent call limit is reached
+    boolean dispatch(Runnable call) {
+        return dispatch(handlerExecutor, callPermits, call);
+    }
 
-                    case HTTP2.FRAME_TYPE_DATA: {
-                        if (frame.payload.length > 5) {
-                            ByteArrayInputStream dataStream = new ByteArrayInputStream(frame.payload);
-                            byte[] dataHeader = dataStream.readNBytes(5);
-                            if (dataHeader[0] != 0) {
-                                sendGoAwayFrame(out, lastStreamId, HTTP2.ERROR_PROTOCOL_ERROR, "Invalid data frame");
-                                terminate = true;
-                                break;
-                            }
-
-                            String path = grpcPath.get(frame.streamId);
-                            ServiceMethodDefinition serviceMethod = grpcMethods.get(path);
-                            if (serviceMethod == null) {
-                                sendGoAwayFrame(out, lastStreamId, HTTP2.ERROR_INTERNAL_ERROR, "Method not found");
-                                terminate = true;
-                                break;
-                            }
-
-                            MessageObject request = new MessageObject(pb, serviceMethod.inputIdentifier, dataStream);
-                            requestMap.put(frame.streamId, request);
-                        }
-
-                        if (frame.flag == HTTP2.FLAG_END_STREAM) {
-                            MessageObject request = requestMap.get(frame.streamId);
-                            if (request == null) {
-                                sendGoAwayFrame(out, lastStreamId, HTTP2.ERROR_PROTOCOL_ERROR, "Invalid data frame");
-                                terminate = true;
-                                break;
-                            }
-
-                            try {
-                                String path = grpcPath.get(frame.streamId);
-                                GrpcHandler handler = handlers.get(path);
-                                if (handler == null) {
-                                    sendGoAwayFrame(out, lastStreamId, HTTP2.ERROR_INTERNAL_ERROR, "Handler not found");
-                                    terminate = true;
-                                    break;
-                                }
-
-                                MessageObject response = handler.apply(request);
-                                ByteArrayOutputStream responseData = new ByteArrayOutputStream();
-                                response.serialize(responseData);
-
-                                // Sending response headers
-                                HTTP2.Frame responseHeaderFrame = new HTTP2.Frame(
-                                    HTTP2.FRAME_TYPE_HEADERS,
-                                    HTTP2.FLAG_END_HEADERS, 
-                                    frame.streamId);
-                                responseHeaderFrame.payload = createResponseHeaders(hp);
-                                responseHeaderFrame.serialize(out);
-
-                                // Sending response data
-                                ByteArrayOutputStream responseStream = new ByteArrayOutputStream();
-                                responseStream.write(0); // No compression
-                                responseStream.write(Utils.unpack(responseData.size(), 4));
-                                responseStream.write(responseData.toByteArray()); 
-                                
-                                HTTP2.Frame responseDataFrame = new HTTP2.Frame(
-                                    HTTP2.FRAME_TYPE_DATA, 
-                                    0x0,
-                                    frame.streamId);
-                                responseDataFrame.payload = responseStream.toByteArray();
-                                responseDataFrame.serialize(out);
-
-                                // Sending response trailers
-                                HTTP2.Frame responseTrailerFrame = new HTTP2.Frame(
-                                    HTTP2.FRAME_TYPE_HEADERS,
-                                    HTTP2.FLAG_END_HEADERS | HTTP2.FLAG_END_STREAM, 
-                                    frame.streamId);
-                                responseTrailerFrame.payload = createResponseTrailers(hp);
-                                responseTrailerFrame.serialize(out);
-
-                                terminate = true;
-                            } catch (Exception ex) {
-                                sendGoAwayFrame(out, lastStreamId, HTTP2.ERROR_INTERNAL_ERROR, "Internal error");
-                                terminate = true;
-                                break;
-                            }
-                        }
-                    }
-                    break;
-                    
-                    case HTTP2.FRAME_TYPE_SETTINGS:
-                        if (frame.flag == HTTP2.FLAG_END_STREAM) {
-                            System.err.println("INFO: Received settings acknowledgment");
-                        } else {
-                            sendAcknowledgeFrame(out);
-                        }
-                        break;
-                    case HTTP2.FRAME_TYPE_PING:
-                        HTTP2.Frame pingAckFrame = new HTTP2.Frame(
-                            HTTP2.FRAME_TYPE_PING, 
-                            HTTP2.FLAG_END_STREAM, 0x0);
-                        pingAckFrame.payload = frame.payload;
-                        pingAckFrame.serialize(out);
-                        break;
-                    case HTTP2.FRAME_TYPE_GOAWAY:
-                        ByteArrayInputStream bais = new ByteArrayInputStream(frame.payload);
-                        int lastStream = (int) Utils.pack(bais.readNBytes(4));
-                        int errorCode = (int) Utils.pack(bais.readNBytes(4));
-                        byte[] debugData = bais.readAllBytes();
-                        System.err.println("ERROR: GOAWAY frame received : " + lastStream + " : " + errorCode + " : " + new String(debugData));
-                        terminate = true;
-                        break;
-                    case HTTP2.FRAME_TYPE_WINDOW_UPDATE:
-                        break;
-                    default:
-                        System.err.println("ERROR: Unexpected frame type");
-                        return;
+    // Runs a streaming call on its own thread unless the streaming call limit is reached
+    boolean dispatchStreaming(Runnable call) {
+        return dispatch(streamingExecutor, streamingPermits, call);
+    }
+
+    private static boolean dispatch(ExecutorService executor, Semaphore permits, Runnable call) {
+        if (!permits.tryAcquire()) {
+            return false;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    call.run();
+                } finally {
+                    permits.release();
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            return false;
+        }
+        return true;
+    }
 
-                lastStreamId = streamId;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.err.println("ERROR: Handling client : " + e.getMessage());
+    // Like dispatch, but the call counts against the limit until the future it returns completes.
+    // A null future means the call is already over.
+    boolean dispatchAsync(Supplier<CompletableFuture<?>> call) {
+        if (!callPermits.tryAcquire()) {
+            return false;
         }
 
         try {
-            client.close();
-        } catch (Exception e) {
-            System.err.println("ERROR: Unable to close connection : " + e.getMessage());
+            handlerExecutor.execute(() -> {
+                CompletableFuture<?> future = null;
+                try {
+                    future = call.get();
+                } finally {
+                    if (future == null) {
+                        callPermits.release();
+                    } else {
+                        future.whenComplete((result, failure) -> callPermits.release());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            callPermits.release();
+            return false;
         }
+        return true;
     }
 
-    private void logFrameDetails(HTTP2.Frame frame) {
-        System.err.println("INFO: Frame received "+ frame.type + " : " + frame.flag + " : " + frame.streamId);
+    static class TypedHandler<Q extends ProtoMessage, R extends ProtoMessage> {
+        final ProtoMessage.Parser<Q> parser;
+        private final GrpcTypedHandler<Q, R> handler;
+
+        TypedHandler(ProtoMessage.Parser<Q> parser, GrpcTypedHandler<Q, R> handler) {
+            this.parser = parser;
+            this.handler = handler;
+        }
+
+        // The request always comes from this handler's parser
+        @SuppressWarnings("unchecked")
+        ProtoMessage apply(ProtoMessage request) throws Exception {
+            return handler.apply((Q) request);
+        }
     }
 
-    private void sendGoAwayFrame(OutputStream out, int streamId, int errorCode, String debugData) throws IOException {
-        HTTP2.Frame frame = new HTTP2.Frame(HTTP2.FRAME_TYPE_GOAWAY, 0x0, streamId);
-        frame.payload = createGoAwayFrameData(streamId, errorCode, debugData);
-        frame.serialize(out);
+    static class StreamingHandler<Q extends ProtoMessage, R extends ProtoMessage> {
+        // Null for MessageObject requests
+        final ProtoMessage.Parser<Q> parser;
+        private final GrpcStreamingHandler<Q, R> handler;
+
+        StreamingHandler(ProtoMessage.Parser<Q> parser, GrpcStreamingHandler<Q, R> handler) {
+            this.parser = parser;
+            this.handler = handler;
+        }
+
+        // Requests come from this handler's parser and the connection writes whatever it is given
+        @SuppressWarnings("unchecked")
+        void apply(GrpcStreamingHandler.Reader<ProtoMessage> requests, GrpcStreamingHandler.Writer<ProtoMessage> responses) throws Exception {
+            handler.apply((GrpcStreamingHandler.Reader<Q>) (GrpcStreamingHandler.Reader<?>) requests, (GrpcStreamingHandler.Writer<R>) (GrpcStreamingHandler.Writer<?>) responses);
+        }
     }
 
-    private byte[] createGoAwayFrameData(int lastStreamId, int errorCode, String debugData) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
+    // Writes happen on the calling thread, which holds the connection's write lock
+    private static class BlockingOutput implements GrpcConnection.Output {
+        private final SocketChannel channel;
+        private final ByteBuffer[] queue = new ByteBuffer[16];
+        private int queued = 0;
 
-        try {
-            dos.writeInt(lastStreamId);
-            dos.writeInt(errorCode);
-            dos.write(debugData.getBytes(StandardCharsets.UTF_8));
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.err.println("ERROR: Creating GOAWAY frame data : " + e.getMessage());
+        BlockingOutput(SocketChannel channel) {
+            this.channel = channel;
         }
 
-        return baos.toByteArray();
-}
+        @Override
+        public void write(ByteBuffer buffer) throws IOException {
+            if (queued == queue.length) {
+                flush();
+            }
+            queue[queued++] = buffer;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                int head = 0;
+                while (head < queued) {
+                    channel.write(queue, head, queued - head);
+                    while (head < queued && !queue[head].hasRemaining()) {
+                        head++;
+                    }
+                }
+            } finally {
+                for (int i = 0; i < queued; i++) {
+                    BufferPool.release(queue[i]);
+                    queue[i] = null;
+                }
+                queued = 0;
+            }
+        }
 
-    private byte[] createSettingsFrameData() throws IOException {
-        ByteArrayOutputStream settingsStream = new ByteArrayOutputStream();
-        settingsStream.write(Utils.unpack(HTTP2.SETTINGS_HEADER_TABLE_SIZE, 2));
-        settingsStream.write(Utils.unpack(4096, 4));
-        settingsStream.write(Utils.unpack(HTTP2.SETTINGS_ENABLE_PUSH, 2));
-        settingsStream.write(Utils.unpack(0, 4));
-        settingsStream.write(Utils.unpack(HTTP2.SETTINGS_MAX_CONCURRENT_STREAMS, 2));
-        settingsStream.write(Utils.unpack(1, 4));
-        settingsStream.write(Utils.unpack(HTTP2.SETTINGS_INITIAL_WINDOW_SIZE, 2));
-        settingsStream.write(Utils.unpack(65535, 4));
-        settingsStream.write(Utils.unpack(HTTP2.SETTINGS_MAX_HEADER_LIST_SIZE, 2));
-        settingsStream.write(Utils.unpack(8192, 4));
-        settingsStream.write(Utils.unpack(HTTP2.SETTINGS_MAX_FRAME_SIZE, 2));
-        settingsStream.write(Utils.unpack(16384, 4));
-        return settingsStream.toByteArray();
-    }
-
-    private byte[] createResponseHeaders(HPack hp) throws Exception {
-        List<String[]> headers = new ArrayList<>();
-        headers.add(new String[] { ":status", "200" });
-        headers.add(new String[] { "content-type", "application/grpc" });
-        byte[] headerData = hp.encode(headers);
-        return headerData;
-    }
-
-    private byte[] createResponseTrailers(HPack hp) throws Exception {
-        List<String[]> headers = new ArrayList<>();
-        headers.add(new String[] { "grpc-status", "0" });
-        headers.add(new String[] { "grpc-message", "OK" });
-        byte[] headerData = hp.encode(headers);
-        return headerData;
-    }
-
-    private void receiveAcknowledgeFrame(InputStream in) throws Exception {
-        HTTP2.Frame frame = new HTTP2.Frame(in);
-        if (frame.type != HTTP2.FRAME_TYPE_SETTINGS) {
-            throw new Exception("ERROR: Expected SETTINGS frame");
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("ERROR: Unable to close connection : " + e.getMessage());
+            }
         }
     }
 
-    private void sendAcknowledgeFrame(OutputStream out) throws IOException {
-        HTTP2.Frame frame = new HTTP2.Frame(HTTP2.FRAME_TYPE_SETTINGS, 0x0, 0x0);
-        frame.serialize(out);
+    // Looked up reflectively so the server still builds and runs on Java 17
+    private static ExecutorService newVirtualThreadExecutor() throws Exception {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new Exception("Virtual thread execution mode requires Java 21+");
+        }
+    }
+
+    private void handleClient(SocketChannel client) {
+        GrpcConnection connection = null;
+        try {
+            // Reads go through the socket adaptor so the idle timeout applies, writes use the channel directly
+            client.socket().setSoTimeout(GrpcConnection.IDLE_TIMEOUT_MS);
+            client.socket().setTcpNoDelay(true);
+            InputStream in = client.socket().getInputStream();
+            connection = newConnection(new BlockingOutput(client));
+            connection.start();
+
+            ByteBuffer buffer = ByteBuffer.allocate(GrpcConnection.READ_BUFFER_SIZE);
+            while (!connection.isClosed()) {
+                int n;
+                try {
+                    n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+                } catch (SocketTimeoutException e) {
+                    connection.onIdleTimeout();
+                    continue;
+                }
+
+                if (n < 0) {
+                    break;
+                }
+
+                buffer.position(buffer.position() + n);
+                buffer.flip();
+                connection.receive(buffer);
+                buffer.compact();
+            }
+        } catch (Exception e) {
+            if (connection == null || !connection.isClosed()) {
+                System.err.println("ERROR: Handling client : " + e.getMessage());
+            }
+        }
+
+        if (connection != null) {
+            connection.close();
+        }
+
+        try {
+            client.close();
+        } catch (Exception e) {
+            System.err.println("ERROR: Unable to close connection : " + e.getMessage());
+        }
     }
 }
@@ -0,0 +1,21 @@
+package jrpc;
+
+// Handler for methods with stream requests, stream responses or both. It runs on a handler thread
+// for the whole call, reading requests as the client sends them and writing responses as it
+// produces them. Methods with a single request or response see a stream of one.
+@FunctionalInterface
+public interface GrpcStreamingHandler<Q extends ProtoMessage, R extends ProtoMessage> {
+    void apply(Reader<Q> requests, Writer<R> responses) throws Exception;
+
+    interface Reader<T> {
+        // Blocks for the next request, null once the client has sent all of them. The client is
+        // held back by flow control while requests are not read.
+        T read() throws Exception;
+    }
+
+    interface Writer<T> {
+        // Blocks until the response is written, for as long as the client's flow control window
+        // is used up, so a call holds one encoded response at a time
+        void write(T response) throws Exception;
+    }
+}
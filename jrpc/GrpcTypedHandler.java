@@ -0,0 +1,7 @@
+package jrpc;
+
+// Handler on generated message classes, see GrpcServer.addHandler
+@FunctionalInterface
+public interface GrpcTypedHandler<Q extends ProtoMessage, R extends ProtoMessage> {
+    R apply(Q request) throws Exception;
+}
@@ -1,14 +1,16 @@
 package jrpc;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class HPack {
     // #region HUFFMAN CODES
@@ -272,12 +274,80 @@ public class HPack {
             "111111111111111111111111111111", // End of line
     };
 
-    private static Map<String, Character> huffmanMap = new HashMap<>();
+    private static final int HUFFMAN_EOS = 256;
+
+    // Decoding consumes a nibble per step. States are the internal nodes of the code tree (root is 0),
+    // each entry packs the next state, the symbol completed along the way and flags.
+    private static final int HUFFMAN_STATE_MASK = 0xFF;
+    private static final int HUFFMAN_SYMBOL_SHIFT = 8;
+    private static final int HUFFMAN_EMIT = 1 << 16;
+    private static final int HUFFMAN_FAIL = 1 << 17;
+
+    // Codes right aligned in an int with their bit lengths, used for encoding
+    private static final int[] huffmanEncodeCodes = new int[HUFFMAN_EOS + 1];
+    private static final int[] huffmanEncodeLengths = new int[HUFFMAN_EOS + 1];
+
+    private static final int[] huffmanDecodeTable;
+    // States reached only by a prefix of EOS shorter than 8 bits, the only valid padding (RFC 7541 Section 5.2)
+    private static final boolean[] huffmanAccepting;
+
     static {
-        for (int i = 0; i < huffmanCodes.length - 1; i++) {
-            huffmanMap.put(huffmanCodes[i], (char) i);
+        // Build the code tree, internal nodes get ids in creation order so the root is 0
+        int[][] children = new int[huffmanCodes.length][2];
+        int[] depth = new int[huffmanCodes.length];
+        boolean[] onesOnly = new boolean[huffmanCodes.length];
+        int internalNodes = 1;
+        onesOnly[0] = true;
+
+        // Leaves are stored as -(symbol + 1) so they can share the children array with node ids
+        for (int symbol = 0; symbol < huffmanCodes.length; symbol++) {
+            String code = huffmanCodes[symbol];
+            huffmanEncodeCodes[symbol] = Integer.parseUnsignedInt(code, 2);
+            huffmanEncodeLengths[symbol] = code.length();
+
+            int node = 0;
+            for (int i = 0; i < code.length(); i++) {
+                int bit = code.charAt(i) - '0';
+                if (i == code.length() - 1) {
+                    children[node][bit] = -(symbol + 1);
+                } else {
+                    if (children[node][bit] == 0) {
+                        int child = internalNodes++;
+                        children[node][bit] = child;
+                        depth[child] = depth[node] + 1;
+                        onesOnly[child] = onesOnly[node] && bit == 1;
+                    }
+                    node = children[node][bit];
+                }
+            }
+        }
+
+        huffmanDecodeTable = new int[internalNodes * 16];
+        huffmanAccepting = new boolean[internalNodes];
+        for (int state = 0; state < internalNodes; state++) {
+            huffmanAccepting[state] = onesOnly[state] && depth[state] < 8;
+
+            for (int nibble = 0; nibble < 16; nibble++) {
+                int node = state;
+                int entry = 0;
+                for (int i = 3; i >= 0; i--) {
+                    int next = children[node][(nibble >> i) & 1];
+                    if (next < 0) {
+                        int symbol = -next - 1;
+                        if (symbol == HUFFMAN_EOS) {
+                            entry |= HUFFMAN_FAIL;
+                            break;
+                        }
+                        // Shortest code is 5 bits so a nibble completes at most one symbol
+                        entry |= HUFFMAN_EMIT | (symbol << HUFFMAN_SYMBOL_SHIFT);
+                        node = 0;
+                    } else {
+                        node = next;
+                    }
+                }
+                huffmanDecodeTable[state * 16 + nibble] = entry | node;
+            }
         }
-        huffmanMap.put(huffmanCodes[huffmanCodes.length - 1], '\n');
     }
     // #endregion
 
@@ -346,62 +416,316 @@ public class HPack {
         {"www-authenticate", ""}
     };
     //#endregion
-    private List<String[]> dynamicHeaderTable = new ArrayList<>();
+
+    // Static table lookups for the encoder, the first index wins for names that repeat
+    private static final Map<String, Integer> staticFieldIndex = new HashMap<>();
+    private static final Map<String, Integer> staticNameIndex = new HashMap<>();
+    static {
+        for (int i = STATIC_HEADER_TABLE.length - 1; i >= 0; i--) {
+            staticFieldIndex.put(STATIC_HEADER_TABLE[i][0] + "\0" + STATIC_HEADER_TABLE[i][1], i + 1);
+            staticNameIndex.put(STATIC_HEADER_TABLE[i][0], i + 1);
+        }
+    }
+
+    // SETTINGS_HEADER_TABLE_SIZE default, also the largest table either side of a connection keeps
+    public static final int DEFAULT_DYNAMIC_TABLE_SIZE = 4096;
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private final DynamicTable dynamicHeaderTable = new DynamicTable(DEFAULT_DYNAMIC_TABLE_SIZE);
+    // Encoder side, smallest and last size set since the previous header block
+    private int pendingMinTableSize = -1;
+    private int pendingTableSize = -1;
+    private byte[] huffmanScratch = new byte[256];
 
     private static final int PREFIX_MASK_7BITS = 0x7F;
     private static final int PREFIX_MASK_6BITS = 0x3F;
     private static final int PREFIX_MASK_5BITS = 0x1F;
     private static final int PREFIX_MASK_4BITS = 0x0F;
 
+    // RFC 7541 Section 2.3.2, a ring of entries bounded by their octet size. Slot head holds
+    // the newest entry and insertion, eviction and lookup by index are all constant time.
+    private static class DynamicTable {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private int[] sizes = new int[16];
+        private int head = 0;
+        private int count = 0;
+        private int size = 0;
+        private int maxSize;
+
+        // Reverse index for the encoder, keyed to the insertion number of the newest matching
+        // entry. Built on the first lookup so a decoder never pays for it.
+        private long insertions = 0;
+        private Map<String, Long> fieldIndex;
+        private Map<String, Long> nameIndex;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        int length() {
+            return count;
+        }
+
+        // 0 is the most recent entry
+        String name(int index) {
+            return names[(head + index) & (names.length - 1)];
+        }
+
+        String value(int index) {
+            return values[(head + index) & (names.length - 1)];
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            while (size > maxSize) {
+                evict();
+            }
+        }
+
+        int getMaxSize() {
+            return maxSize;
+        }
+
+        int getSize() {
+            return size;
+        }
+
+        // Entries larger than the whole table just empty it, RFC 7541 Section 4.4
+        void add(String name, String value, int entrySize) {
+            while (count > 0 && size + entrySize > maxSize) {
+                evict();
+            }
+            if (entrySize > maxSize) {
+                return;
+            }
+
+            if (count == names.length) {
+                grow();
+            }
+            head = (head - 1) & (names.length - 1);
+            names[head] = name;
+            values[head] = value;
+            sizes[head] = entrySize;
+            count++;
+            size += entrySize;
+
+            if (fieldIndex != null) {
+                fieldIndex.put(fieldKey(name, value), insertions);
+                nameIndex.put(name, insertions);
+            }
+            insertions++;
+        }
+
+        // Index of the newest entry with this name and value, -1 when there is none
+        int indexOf(String name, String value) {
+            buildIndex();
+            return toIndex(fieldIndex.get(fieldKey(name, value)));
+        }
+
+        int indexOfName(String name) {
+            buildIndex();
+            return toIndex(nameIndex.get(name));
+        }
+
+        private int toIndex(Long insertion) {
+            return (insertion == null) ? -1 : (int) (insertions - 1 - insertion);
+        }
+
+        private void evict() {
+            int slot = (head + count - 1) & (names.length - 1);
+            if (fieldIndex != null) {
+                // Only drop keys that still point at the evicted entry and not at a newer copy
+                Long insertion = insertions - count;
+                fieldIndex.remove(fieldKey(names[slot], values[slot]), insertion);
+                nameIndex.remove(names[slot], insertion);
+            }
+
+            size -= sizes[slot];
+            names[slot] = null;
+            values[slot] = null;
+            count--;
+        }
+
+        private void grow() {
+            String[] newNames = new String[names.length * 2];
+            String[] newValues = new String[names.length * 2];
+            int[] newSizes = new int[names.length * 2];
+            for (int i = 0; i < count; i++) {
+                int slot = (head + i) & (names.length - 1);
+                newNames[i] = names[slot];
+                newValues[i] = values[slot];
+                newSizes[i] = sizes[slot];
+            }
+            names = newNames;
+            values = newValues;
+            sizes = newSizes;
+            head = 0;
+        }
+
+        private void buildIndex() {
+            if (fieldIndex != null) {
+                return;
+            }
+
+            fieldIndex = new HashMap<>();
+            nameIndex = new HashMap<>();
+            // Oldest first so newer entries win
+            for (int i = count - 1; i >= 0; i--) {
+                long insertion = insertions - 1 - i;
+                fieldIndex.put(fieldKey(name(i), value(i)), insertion);
+                nameIndex.put(name(i), insertion);
+            }
+        }
+
+        private static String fieldKey(String name, String value) {
+            return name + "\0" + value;
+        }
+    }
+
     public HPack() {
-        dynamicHeaderTable = new ArrayList<>();
+    }
+
+    // Encoder side, the peer's SETTINGS_HEADER_TABLE_SIZE. The table never grows past the
+    // default and the change is announced at the start of the next header block.
+    public void setMaxTableSize(int size) {
+        int newSize = Math.min(size, DEFAULT_DYNAMIC_TABLE_SIZE);
+        if (newSize == dynamicHeaderTable.getMaxSize() && pendingTableSize < 0) {
+            return;
+        }
+
+        dynamicHeaderTable.setMaxSize(newSize);
+        pendingMinTableSize = (pendingMinTableSize < 0) ? newSize : Math.min(pendingMinTableSize, newSize);
+        pendingTableSize = newSize;
+    }
+
+    // Entries of the dynamic table, newest first, and their size in octets as RFC 7541 counts it
+    List<String[]> getDynamicTable() {
+        List<String[]> entries = new ArrayList<>();
+        for (int i = 0; i < dynamicHeaderTable.length(); i++) {
+            entries.add(new String[]{dynamicHeaderTable.name(i), dynamicHeaderTable.value(i)});
+        }
+        return entries;
+    }
+
+    int getDynamicTableSize() {
+        return dynamicHeaderTable.getSize();
     }
 
     public List<String[]> decode(byte[] headerBlock) throws Exception {
+        return decode(ByteBuffer.wrap(headerBlock));
+    }
+
+    // Consumes the remaining bytes of the buffer
+    public List<String[]> decode(ByteBuffer in) throws Exception {
         List<String[]> decodedHeaderList = new ArrayList<>();
-        ByteArrayInputStream in = new ByteArrayInputStream(headerBlock);
 
-        while (in.available() > 0) {
-            byte b = (byte) in.read();
+        while (in.hasRemaining()) {
+            byte b = in.get();
 
             if ((b & 0x80) != 0) {
                 // Indexed Header Field Representation
                 int headerField = decodeInteger(in, b, PREFIX_MASK_7BITS);
-                String headerName = getIndexedHeaderField(headerField)[0];
-                String headerValue = getIndexedHeaderField(headerField)[1];
+                String[] field = getIndexedHeaderField(headerField);
 
-                decodedHeaderList.add(new String[]{headerName, headerValue});
+                decodedHeaderList.add(new String[]{field[0], field[1]});
             } else if ((b & 0x40) != 0) {
                 // Literal Header Field with Incremental Indexing
                 String[] pair =  handleLiteralHeaderField(in, b, PREFIX_MASK_6BITS);
-                dynamicHeaderTable.add(pair);
-                decodedHeaderList.add(pair);
-            } else if ((b & 0xF0) == 0) {
-                // Literal Header Field without Indexing
-                String[] pair =  handleLiteralHeaderField(in, b, PREFIX_MASK_4BITS);
+                dynamicHeaderTable.add(pair[0], pair[1], pair[0].length() + pair[1].length() + ENTRY_OVERHEAD);
                 decodedHeaderList.add(pair);
             } else if ((b & 0x20) != 0) {
+                // Dynamic Table Size Update, only allowed before the first field of a block
                 int newSize = decodeInteger(in, b, PREFIX_MASK_5BITS);
-                while (dynamicHeaderTable.size() > newSize) {
-                    dynamicHeaderTable.remove(dynamicHeaderTable.size() - 1);
+                if (!decodedHeaderList.isEmpty()) {
+                    throw new Exception("Dynamic table size update after a header field");
+                }
+                if (newSize > DEFAULT_DYNAMIC_TABLE_SIZE) {
+                    throw new Exception("Dynamic table size update above SETTINGS_HEADER_TABLE_SIZE : " + newSize);
                 }
+                dynamicHeaderTable.setMaxSize(newSize);
+            } else {
+                // Literal Header Field without Indexing (0000) or Never Indexed (0001)
+                String[] pair =  handleLiteralHeaderField(in, b, PREFIX_MASK_4BITS);
+                decodedHeaderList.add(pair);
             }
         }
 
         return decodedHeaderList;
     }
 
-    // TODO: Consider incremental indexing
+    // Every field the peer's table can hold is added with incremental indexing,
+    // so repeated fields shrink to a single index byte on later header blocks
     public byte[] encode(List<String[]> headers) throws IOException {
+        return encode(headers, Collections.emptySet());
+    }
+
+    // Fields named in unindexedNames are never added to the table, for values that rarely repeat
+    // and would only evict the fields every header block shares
+    public byte[] encode(List<String[]> headers, Set<String> unindexedNames) throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (pendingTableSize >= 0) {
+            // Dynamic Table Size Update, the smallest size first so the peer evicts as we did
+            if (pendingMinTableSize < pendingTableSize) {
+                encodeInteger(out, 0x20, pendingMinTableSize, PREFIX_MASK_5BITS);
+            }
+            encodeInteger(out, 0x20, pendingTableSize, PREFIX_MASK_5BITS);
+            pendingMinTableSize = -1;
+            pendingTableSize = -1;
+        }
+
         for (String[] pair: headers) {
-            out.write(0); // Literal Header Field without Indexing
-            encodeString(out, pair[0]);
-            encodeString(out, pair[1]);
+            String name = pair[0];
+            String value = pair[1];
+
+            int index = findField(name, value);
+            if (index > 0) {
+                // Indexed Header Field
+                encodeInteger(out, 0x80, index, PREFIX_MASK_7BITS);
+                continue;
+            }
+
+            int nameIndex = findName(name);
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+            int entrySize = nameBytes.length + valueBytes.length + ENTRY_OVERHEAD;
+            if (entrySize <= dynamicHeaderTable.getMaxSize() && !unindexedNames.contains(name)) {
+                // Literal Header Field with Incremental Indexing
+                encodeInteger(out, 0x40, nameIndex, PREFIX_MASK_6BITS);
+                dynamicHeaderTable.add(name, value, entrySize);
+            } else {
+                // Literal Header Field without Indexing
+                encodeInteger(out, 0x00, nameIndex, PREFIX_MASK_4BITS);
+            }
+
+            if (nameIndex == 0) {
+                encodeString(out, nameBytes);
+            }
+            encodeString(out, valueBytes);
         }
         return out.toByteArray();
     }
 
+    private int findField(String name, String value) {
+        Integer index = staticFieldIndex.get(name + "\0" + value);
+        if (index != null) {
+            return index;
+        }
+
+        int dynamicIndex = dynamicHeaderTable.indexOf(name, value);
+        return (dynamicIndex < 0) ? 0 : STATIC_HEADER_TABLE.length + 1 + dynamicIndex;
+    }
+
+    private int findName(String name) {
+        Integer index = staticNameIndex.get(name);
+        if (index != null) {
+            return index;
+        }
+
+        int dynamicIndex = dynamicHeaderTable.indexOfName(name);
+        return (dynamicIndex < 0) ? 0 : STATIC_HEADER_TABLE.length + 1 + dynamicIndex;
+    }
+
     private String[] getIndexedHeaderField(int index) {
         if (index == 0) {
             throw new IllegalArgumentException("Index 0 is not used and must be treated as a decoding error.");
@@ -411,15 +735,15 @@ public class HPack {
             return STATIC_HEADER_TABLE[index - 1]; // Static table is 1-based index
         } else {
             int dynamicIndex = index - STATIC_HEADER_TABLE.length - 1;
-            if (dynamicIndex < dynamicHeaderTable.size()) {
-                return dynamicHeaderTable.get(dynamicIndex);
+            if (dynamicIndex < dynamicHeaderTable.length()) {
+                return new String[] { dynamicHeaderTable.name(dynamicIndex), dynamicHeaderTable.value(dynamicIndex) };
             } else {
                 throw new IllegalArgumentException("Index out of bounds for dynamic table.");
             }
         }
     }
 
-    private String[] handleLiteralHeaderField(InputStream in, byte b, int prefixMask) throws Exception {
+    private String[] handleLiteralHeaderField(ByteBuffer in, byte b, int prefixMask) throws Exception {
         int headerFieldIndex = decodeInteger(in, b, prefixMask);
         if (headerFieldIndex == 0) {
             String headerName = decodeString(in);
@@ -432,26 +756,66 @@ public class HPack {
         }
     }
 
-    private String decodeString(InputStream in) throws Exception {
-        int b = in.read();
+    private String decodeString(ByteBuffer in) throws Exception {
+        int b = in.get();
         boolean compressed = (b & 0x80) != 0;
 
         int length = decodeInteger(in, b, PREFIX_MASK_7BITS);
-        byte[] bytes = in.readNBytes(length);
+        if (length > in.remaining()) {
+            throw new Exception("String length exceeds header block");
+        }
+        if (compressed) {
+            return huffmanDecode(in, length);
+        }
 
-        return compressed ? huffmanDecode(bytes, 0) : new String(bytes);
+        // One char per octet like the Huffman path, so string lengths are the octet sizes the table counts
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
     }
 
-    private void encodeString(OutputStream out, String str) throws IOException {
-        int len = str.length();
-        encodeInteger(out, len, PREFIX_MASK_7BITS);
-        out.write(str.getBytes());
+    // Huffman coding is used whenever it is shorter than the raw octets
+    private void encodeString(OutputStream out, byte[] bytes) throws IOException {
+
+        long bits = 0;
+        for (byte b : bytes) {
+            bits += huffmanEncodeLengths[b & 0xFF];
+        }
+        int huffmanLength = (int) ((bits + 7) / 8);
+
+        if (huffmanLength >= bytes.length) {
+            encodeInteger(out, 0x00, bytes.length, PREFIX_MASK_7BITS);
+            out.write(bytes);
+            return;
+        }
+
+        encodeInteger(out, 0x80, huffmanLength, PREFIX_MASK_7BITS);
+
+        long current = 0;
+        int pending = 0;
+        for (byte b : bytes) {
+            int symbol = b & 0xFF;
+            current = (current << huffmanEncodeLengths[symbol]) | huffmanEncodeCodes[symbol];
+            pending += huffmanEncodeLengths[symbol];
+
+            while (pending >= 8) {
+                pending -= 8;
+                out.write((int) (current >>> pending));
+            }
+        }
+
+        // Pad with the most significant bits of EOS, which are all ones
+        if (pending > 0) {
+            out.write((int) ((current << (8 - pending)) | (0xFF >>> pending)));
+        }
     }
 
-    private void encodeInteger(OutputStream out, int i, int prefixMask) throws IOException {
+    // Writes the integer with the given representation bits in the first octet
+    private void encodeInteger(OutputStream out, int firstByte, int i, int prefixMask) throws IOException {
         if (i < prefixMask) {
-            out.write(i);
+            out.write(firstByte | i);
         } else {
+            out.write(firstByte | prefixMask);
             int value = i - prefixMask;
             int B;
 
@@ -466,19 +830,19 @@ public class HPack {
         }
     }
 
-    private int decodeInteger(InputStream in, int b, int prefixMask) throws Exception {
+    private int decodeInteger(ByteBuffer in, int b, int prefixMask) throws Exception {
         int prefix = b & prefixMask;
 
-        if (prefix < 127) {
+        if (prefix < prefixMask) {
             return prefix;
         }
 
-        int value = 127;
+        int value = prefixMask;
         int M = 0;
         int B;
 
         do {
-            B = in.read();
+            B = in.get();
             value += (B & 127) << M;
             M += 7;
         } while ((B & 128) == 128);
@@ -486,24 +850,43 @@ public class HPack {
         return value;
     }
 
-    private String huffmanDecode(byte[] bytes, int start) {
-        StringBuilder sb = new StringBuilder();
-        for (int j = start; j < bytes.length; j++) {
-            byte b = bytes[j];
-            sb.append(String.format("%8s", Integer.toBinaryString(b & 0xFF)).replace(' ', '0'));
-        }
-        String binaryString = sb.toString();
-
-        StringBuilder decodedString = new StringBuilder();
-        StringBuilder temp = new StringBuilder();
-        for (char bit : binaryString.toCharArray()) {
-            temp.append(bit);
-            if (huffmanMap.containsKey(temp.toString())) {
-                decodedString.append(huffmanMap.get(temp.toString()));
-                temp.setLength(0);
+    // Decoded octets go to a scratch buffer owned by this decoder, so only the result string is allocated
+    private String huffmanDecode(ByteBuffer in, int length) throws Exception {
+        // Every symbol is at least 5 bits long
+        int maxLength = (length * 8) / 5;
+        if (huffmanScratch.length < maxLength) {
+            huffmanScratch = new byte[Math.max(maxLength, huffmanScratch.length * 2)];
+        }
+
+        byte[] decoded = huffmanScratch;
+        int count = 0;
+        int state = 0;
+        for (int i = 0; i < length; i++) {
+            int b = in.get() & 0xFF;
+
+            int entry = huffmanDecodeTable[(state << 4) | (b >>> 4)];
+            if ((entry & HUFFMAN_FAIL) != 0) {
+                throw new Exception("EOS symbol in Huffman encoded string");
+            }
+            if ((entry & HUFFMAN_EMIT) != 0) {
+                decoded[count++] = (byte) (entry >>> HUFFMAN_SYMBOL_SHIFT);
+            }
+            state = entry & HUFFMAN_STATE_MASK;
+
+            entry = huffmanDecodeTable[(state << 4) | (b & 0x0F)];
+            if ((entry & HUFFMAN_FAIL) != 0) {
+                throw new Exception("EOS symbol in Huffman encoded string");
             }
+            if ((entry & HUFFMAN_EMIT) != 0) {
+                decoded[count++] = (byte) (entry >>> HUFFMAN_SYMBOL_SHIFT);
+            }
+            state = entry & HUFFMAN_STATE_MASK;
+        }
+
+        if (!huffmanAccepting[state]) {
+            throw new Exception("Invalid Huffman padding");
         }
 
-        return decodedString.toString();
+        return new String(decoded, 0, count, StandardCharsets.ISO_8859_1);
     }
 }
@@ -1,11 +1,10 @@
 package jrpc;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public class HTTP2 {
     public static final byte[] EXPECTED_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+    public static final int FRAME_HEADER_LENGTH = 9;
 
     public static final int FRAME_TYPE_DATA = 0x0;
     public static final int FRAME_TYPE_HEADERS = 0x01;
@@ -15,26 +14,129 @@ public class HTTP2 {
     public static final int FRAME_TYPE_PING = 0x06;
     public static final int FRAME_TYPE_GOAWAY = 0x07;
     public static final int FRAME_TYPE_WINDOW_UPDATE = 0x08;
+    public static final int FRAME_TYPE_CONTINUATION = 0x09;
 
     public static final int FLAG_END_HEADERS = 0x04;
     public static final int FLAG_END_STREAM = 0x01;
+    public static final int FLAG_ACK = 0x01;
+    public static final int FLAG_PADDED = 0x08;
+    public static final int FLAG_PRIORITY = 0x20;
 
-    public static final int SETTINGS_HEADER_TABLE_SIZE = 0x0;
+    public static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
     public static final int SETTINGS_ENABLE_PUSH = 0x2;
     public static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
     public static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
     public static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
     public static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
 
+    // Initial values and limits from RFC 7540 Section 6.5.2
+    public static final int DEFAULT_INITIAL_WINDOW_SIZE = 65535;
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    public static final int MAX_MAX_FRAME_SIZE = 16777215;
+
     public static final int ERROR_NO_ERROR = 0x0;
     public static final int ERROR_PROTOCOL_ERROR = 0x1;
     public static final int ERROR_INTERNAL_ERROR = 0x2;
+    public static final int ERROR_FLOW_CONTROL_ERROR = 0x3;
+    public static final int ERROR_STREAM_CLOSED = 0x5;
+    public static final int ERROR_FRAME_SIZE_ERROR = 0x6;
+    public static final int ERROR_REFUSED_STREAM = 0x7;
+    public static final int ERROR_CANCEL = 0x8;
+    public static final int ERROR_COMPRESSION_ERROR = 0x9;
+
+    // Stream states from RFC 7540 Section 5.1, reserved states are not used since push is disabled
+    public enum StreamState {
+        IDLE,
+        OPEN,
+        HALF_CLOSED_LOCAL,
+        HALF_CLOSED_REMOTE,
+        CLOSED,
+    }
+
+    public static class ProtocolException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public final int errorCode;
+        public final int streamId; // 0 for connection errors
+
+        public ProtocolException(int errorCode, int streamId, String message) {
+            super(message);
+            this.errorCode = errorCode;
+            this.streamId = streamId;
+        }
+    }
+
+    public static class Stream {
+        public final int id;
+        private StreamState state;
+
+        public Stream(int id) {
+            this.id = id;
+            this.state = StreamState.IDLE;
+        }
+
+        public synchronized StreamState getState() {
+            return state;
+        }
+
+        public synchronized void receiveHeaders(boolean endStream) throws ProtocolException {
+            if (state == StreamState.IDLE) {
+                state = endStream ? StreamState.HALF_CLOSED_REMOTE : StreamState.OPEN;
+                return;
+            }
+
+            // Trailers, they must close the remote side
+            if (endStream && (state == StreamState.OPEN || state == StreamState.HALF_CLOSED_LOCAL)) {
+                state = (state == StreamState.OPEN) ? StreamState.HALF_CLOSED_REMOTE : StreamState.CLOSED;
+                return;
+            }
+
+            throw new ProtocolException(ERROR_STREAM_CLOSED, id, "HEADERS received in state " + state);
+        }
+
+        public synchronized void receiveData(boolean endStream) throws ProtocolException {
+            if (state != StreamState.OPEN && state != StreamState.HALF_CLOSED_LOCAL) {
+                throw new ProtocolException(ERROR_STREAM_CLOSED, id, "DATA received in state " + state);
+            }
+            if (endStream) {
+                state = (state == StreamState.OPEN) ? StreamState.HALF_CLOSED_REMOTE : StreamState.CLOSED;
+            }
+        }
+
+        public synchronized void sendEndStream() {
+            if (state == StreamState.OPEN) {
+                state = StreamState.HALF_CLOSED_LOCAL;
+            } else {
+                state = StreamState.CLOSED;
+            }
+        }
+
+        public synchronized void reset() {
+            state = StreamState.CLOSED;
+        }
+
+        public synchronized boolean isClosed() {
+            return state == StreamState.CLOSED;
+        }
+    }
+
+    // Length of the frame starting at the buffer position, the buffer must hold at least the frame header
+    public static int peekFrameLength(ByteBuffer in) {
+        int position = in.position();
+        return ((in.get(position) & 0xff) << 16) | ((in.get(position + 1) & 0xff) << 8) | (in.get(position + 2) & 0xff);
+    }
 
     public static class Frame {
         public int type;
         public int flag;
         public int streamId;
-        public byte[] payload;
+        public ByteBuffer payload;
+
+        // Buffer the payload view of a decoded frame was created from
+        private ByteBuffer source;
+
+        public Frame() {
+        }
 
         public Frame(int type, int flag, int streamId) {
             this.type = type;
@@ -42,23 +144,71 @@ public class HTTP2 {
             this.streamId = streamId;
         }
 
-        public Frame(InputStream in) throws IOException {
-            int length = (int) Utils.pack(in.readNBytes(3));
-            this.type = (int) Utils.pack(in.readNBytes(1));
-            this.flag = (int) Utils.pack(in.readNBytes(1));
-            this.streamId = (int) Utils.pack(in.readNBytes(4));
-            this.payload = in.readNBytes(length);
+        public Frame(int type, int flag, int streamId, byte[] payload) {
+            this(type, flag, streamId);
+            this.payload = ByteBuffer.wrap(payload);
+        }
+
+        public int length() {
+            return (payload == null) ? 0 : payload.remaining();
+        }
+
+        // Decodes the frame at the buffer position in place, the payload is a view into the buffer
+        // and is only valid until the buffer is modified. The buffer must hold the whole frame.
+        public void decode(ByteBuffer in) {
+            int position = in.position();
+            int length = peekFrameLength(in);
+            this.type = in.get(position + 3) & 0xff;
+            this.flag = in.get(position + 4) & 0xff;
+            this.streamId = in.getInt(position + 5) & 0x7FFFFFFF;
+
+            if (source != in) {
+                source = in;
+                payload = in.duplicate();
+            }
+            payload.clear();
+            payload.position(position + FRAME_HEADER_LENGTH);
+            payload.limit(position + FRAME_HEADER_LENGTH + length);
+
+            in.position(position + FRAME_HEADER_LENGTH + length);
+        }
+
+        // Narrows the payload of a DATA or HEADERS frame to its content, dropping the pad length,
+        // the padding and the priority fields. Flow control counts the frame before this.
+        public void removePadding() throws ProtocolException {
+            int padLength = 0;
+            if ((flag & FLAG_PADDED) != 0) {
+                if (!payload.hasRemaining()) {
+                    throw new ProtocolException(ERROR_PROTOCOL_ERROR, 0, "Padded frame without pad length");
+                }
+                padLength = payload.get() & 0xff;
+            }
+            if (type == FRAME_TYPE_HEADERS && (flag & FLAG_PRIORITY) != 0) {
+                if (payload.remaining() < 5) {
+                    throw new ProtocolException(ERROR_FRAME_SIZE_ERROR, 0, "HEADERS frame too short for priority");
+                }
+                payload.position(payload.position() + 5);
+            }
+            if (padLength > payload.remaining()) {
+                throw new ProtocolException(ERROR_PROTOCOL_ERROR, 0, "Padding longer than frame payload");
+            }
+            payload.limit(payload.limit() - padLength);
         }
 
-        public void serialize(OutputStream out) throws IOException {
-            int dataLength = (payload == null) ? 0 : payload.length;
-            out.write(Utils.unpack(dataLength, 3));
-            out.write((byte) type);
-            out.write((byte) flag);
-            out.write(Utils.unpack(streamId & 0x7FFFFFFF, 4));
-            if (payload != null && payload.length != 0)
-                out.write(payload);
-            out.flush();
+        // Writes header and payload, the payload position is left untouched
+        public void encode(ByteBuffer out) {
+            int length = length();
+            out.put((byte) (length >>> 16));
+            out.put((byte) (length >>> 8));
+            out.put((byte) length);
+            out.put((byte) type);
+            out.put((byte) flag);
+            out.putInt(streamId & 0x7FFFFFFF);
+            if (length != 0) {
+                int position = payload.position();
+                out.put(payload);
+                payload.position(position);
+            }
         }
     }
 }
@@ -0,0 +1,11 @@
+package jrpc;
+
+// Encoder and decoder specialized for one message type, see CodecCompiler. Only used through
+// MessageObject, which falls back to its generic loops when a plan has no codec.
+interface MessageCodec {
+    int computeSize(MessageObject message) throws Exception;
+
+    int writeTo(MessageObject message, byte[] buffer, int offset) throws Exception;
+
+    void deserialize(MessageObject message, Wire.Input in, boolean lazy) throws Exception;
+}
@@ -0,0 +1,73 @@
+package jrpc;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Splits the DATA payloads of a stream into length prefixed gRPC messages. Payloads are fed as
+// they arrive and a message is returned as soon as its last byte is in, whatever the framing.
+// The array for a message grows with the bytes received, the size in the prefix is only trusted
+// as an upper bound, so a peer can not make us allocate for data it never sends.
+class MessageDeframer {
+    public static final int PREFIX_LENGTH = 5;
+
+    private final int streamId;
+    private final int maxMessageSize;
+
+    private final byte[] prefix = new byte[PREFIX_LENGTH];
+    private int prefixLength;
+    // Message being filled, null while the prefix is read
+    private byte[] message;
+    private int messageLength;
+    private int messageSize;
+
+    MessageDeframer(int streamId, int maxMessageSize) {
+        this.streamId = streamId;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    // Consumes data up to the end of the next message and returns it, or null once data is used up
+    // with the message still incomplete. Call again while data has bytes remaining.
+    byte[] read(ByteBuffer data) throws Exception {
+        if (message == null) {
+            int count = Math.min(PREFIX_LENGTH - prefixLength, data.remaining());
+            data.get(prefix, prefixLength, count);
+            prefixLength += count;
+            if (prefixLength < PREFIX_LENGTH) {
+                return null;
+            }
+
+            if (prefix[0] != 0) {
+                throw new HTTP2.ProtocolException(HTTP2.ERROR_PROTOCOL_ERROR, streamId, "Compressed messages are not supported");
+            }
+            int size = ((prefix[1] & 0xff) << 24) | ((prefix[2] & 0xff) << 16) | ((prefix[3] & 0xff) << 8) | (prefix[4] & 0xff);
+            if (size < 0 || size > maxMessageSize) {
+                throw new Exception("Message of " + Integer.toUnsignedString(size) + " bytes is larger than " + maxMessageSize);
+            }
+            messageSize = size;
+            message = new byte[Math.min(size, data.remaining())];
+            messageLength = 0;
+        }
+
+        int count = Math.min(messageSize - messageLength, data.remaining());
+        if (messageLength + count > message.length) {
+            // Doubled so a message spread over many frames is copied a few times only, the last
+            // growth leaves the array at exactly the message size
+            message = Arrays.copyOf(message, Math.min(messageSize, Math.max(messageLength + count, message.length * 2)));
+        }
+        data.get(message, messageLength, count);
+        messageLength += count;
+        if (messageLength < messageSize) {
+            return null;
+        }
+
+        byte[] complete = message;
+        message = null;
+        prefixLength = 0;
+        return complete;
+    }
+
+    // True when no part of a message is buffered, a stream must not end otherwise
+    boolean isIdle() {
+        return message == null && prefixLength == 0;
+    }
+}
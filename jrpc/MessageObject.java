@@ -1,382 +1,930 @@
 package jrpc;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
-import jrpc.ProtocolBuffers.Definition;
-import jrpc.ProtocolBuffers.EnumDefinition;
-import jrpc.ProtocolBuffers.MessageDefinition;
-import jrpc.ProtocolBuffers.MessageField;
+import jrpc.ProtocolBuffers.FieldKind;
+import jrpc.ProtocolBuffers.FieldPlan;
+import jrpc.ProtocolBuffers.JavaType;
 import jrpc.ProtocolBuffers.MessageFieldModifier;
+import jrpc.ProtocolBuffers.MessagePlan;
+import jrpc.ProtocolBuffers.WireType;
+
+public class MessageObject implements ProtoMessage {
+    private final MessagePlan plan;
+    // Field values by slot, see FieldPlan.slot. Primitive fields keep their raw bits in
+    // scalars and everything else lives in values, presence is one bit per slot. Compiled
+    // codecs work on them directly.
+    final Object[] values;
+    final long[] scalars;
+    final long[] present;
+    // Set by the size pass of serialization, used by the write pass of the enclosing message
+    int serializedSize;
+    // Input of a lazy decode, fields still in EncodedField form point into it
+    private byte[] source;
+    // Pool the message is returned to once its call is done, null when not pooled
+    MessagePool pool;
 
-public class MessageObject {
-    private final Map<Integer, Object> fieldValues;
-    private final Map<Integer, String> fieldNames;
-    private final ProtocolBuffers.MessageDefinition definition;
-    private final ProtocolBuffers pb;
-
-
-    private static final int WIRE_TYPE_VARINT = 0;
-    //private static final int WIRE_TYPE_FIXED64 = 1;
-    private static final int WIRE_TYPE_LENGTH_DELIMITED = 2;
-    /*private static final int WIRE_TYPE_START_GROUP = 3;
-    private static final int WIRE_TYPE_END_GROUP = 4;
-    private static final int WIRE_TYPE_FIXED32 = 5;
-    */
     MessageObject(ProtocolBuffers pb, String name) throws Exception {
-        this.pb = pb;
-        Definition def = pb.getDefinitions().get(name);
-        if (def == null || !(def instanceof MessageDefinition)) {
-            throw new Exception("Unknown message definition: " + name);
-        }
-        this.definition = (MessageDefinition) def;
-        this.fieldValues = new HashMap<>();
-        this.fieldNames = new HashMap<>();
+        this(getPlan(pb, name));
+    }
+
+    MessageObject(MessagePlan plan) {
+        int slots = plan.getFields().length;
+        this.plan = plan;
+        this.values = new Object[slots];
+        this.scalars = plan.hasPrimitives() ? new long[slots] : null;
+        this.present = new long[(slots + 63) >>> 6];
     }
 
     MessageObject(ProtocolBuffers pb, String name, InputStream in) throws Exception {
         this(pb, name);
-        deserialize(in);
+        byte[] buffer = in.readAllBytes();
+        deserialize(new Wire.Input(buffer, 0, buffer.length), false);
     }
 
-    public void setField(String name, Object value) {
-        Integer number = null;
-        ProtocolBuffers.MessageField fieldDefinition = null;
+    // Decodes in place, bytes fields are read only views into the buffer so it must not
+    // be modified while the message is in use
+    MessageObject(ProtocolBuffers pb, String name, byte[] buffer, int offset, int length) throws Exception {
+        this(pb, name, buffer, offset, length, false);
+    }
 
-        for (Map.Entry<Integer, ProtocolBuffers.MessageField> entry : definition.fields.entrySet()) {
-            if (entry.getValue().identifier.equals(name)) {
-                number = entry.getKey();
-                fieldDefinition = entry.getValue();
-                break;
-            }
+    // A lazy decode only checks the structure of strings, bytes, messages and maps and keeps
+    // where they are. They are decoded on first access and copied back verbatim if never
+    // touched, so messages that are mostly passed through cost little more than a copy.
+    MessageObject(ProtocolBuffers pb, String name, byte[] buffer, int offset, int length, boolean lazy) throws Exception {
+        this(pb, name);
+        parse(buffer, offset, length, lazy);
+    }
+
+    // Heap buffers are decoded in place like arrays, direct buffers are copied once
+    MessageObject(ProtocolBuffers pb, String name, ByteBuffer in) throws Exception {
+        this(pb, name);
+        if (in.hasArray()) {
+            int offset = in.arrayOffset() + in.position();
+            deserialize(new Wire.Input(in.array(), offset, offset + in.remaining()), false);
+        } else {
+            byte[] buffer = new byte[in.remaining()];
+            in.get(in.position(), buffer);
+            deserialize(new Wire.Input(buffer, 0, buffer.length), false);
         }
+    }
 
-        if (number == null) {
-            throw new IllegalArgumentException("Unknown field: " + name);
+    MessagePlan getPlan() {
+        return plan;
+    }
+
+    // Decodes into a message that is new or has just been reset
+    void parse(byte[] buffer, int offset, int length, boolean lazy) throws Exception {
+        deserialize(new Wire.Input(buffer, offset, offset + length), lazy);
+    }
+
+    private static MessagePlan getPlan(ProtocolBuffers pb, String name) throws Exception {
+        MessagePlan plan = pb.getPlan(name);
+        if (plan == null) {
+            throw new Exception("Unknown message definition: " + name);
         }
+        return plan;
+    }
+
+    public void setField(String name, Object value) {
+        FieldPlan field = getFieldPlan(name);
 
-        if (fieldDefinition.modifier == MessageFieldModifier.REPEATED && value.getClass().isArray()) {
+        if (value == null) {
+            clear(field.slot);
+            return;
+        }
+
+        if (field.modifier == MessageFieldModifier.REPEATED && !value.getClass().isArray()) {
             throw new IllegalArgumentException("Field is repeated, but value is not an array");
         }
 
-        if (fieldDefinition.modifier == MessageFieldModifier.MAP && !(value instanceof Map)) {
+        if (field.modifier == MessageFieldModifier.MAP && !(value instanceof Map)) {
             throw new IllegalArgumentException("Field is map, but value is not a map");
         }
 
-
-        String oneof = definition.oneofs.get(number);
-        if (oneof != null) {
-            for (Map.Entry<Integer, String> entry : definition.oneofs.entrySet()) {
-                if (entry.getValue().equals(oneof)) {
-                    fieldValues.remove(entry.getKey());
-                    fieldNames.remove(entry.getKey());
-                }
-            }
+        clearOneof(field);
+        if (field.primitive) {
+            scalars[field.slot] = toBits(field, value);
+        } else if (field.scalar && field.modifier == MessageFieldModifier.REPEATED) {
+            values[field.slot] = toScalarArray(field, value);
+        } else {
+            values[field.slot] = value;
         }
-
-        fieldValues.put(number, value);
-        fieldNames.put(number, name);
+        setPresent(field.slot);
     }
 
     public Object getField(String name) {
-        Integer number = null;
+        return getValue(getFieldPlan(name));
+    }
 
-        for (Map.Entry<Integer, MessageField> entry : definition.fields.entrySet()) {
-            if (entry.getValue().identifier.equals(name)) {
-                number = entry.getKey();
-                break;
-            }
-        }
-        if (number == null) {
-            throw new IllegalArgumentException("Unknown field: " + name);
+    // Clears every field so the message can be filled again without allocating new storage
+    public void reset() {
+        Arrays.fill(values, null);
+        Arrays.fill(present, 0);
+        serializedSize = 0;
+        source = null;
+    }
+
+    // New message of the given type, taken from the same pool as this one when it is pooled so
+    // handlers can build responses that are recycled along with their request
+    public MessageObject newMessage(String name) throws Exception {
+        if (pool != null) {
+            return pool.acquire(name);
         }
+        return new MessageObject(plan.pb, name);
+    }
+
+    // Unboxed accessors for singular scalar fields, unset fields read as zero
+    public int getInt(String name) {
+        return (int) getBits(name, JavaType.INT);
+    }
+
+    public long getLong(String name) {
+        return getBits(name, JavaType.LONG);
+    }
+
+    public float getFloat(String name) {
+        return Float.intBitsToFloat((int) getBits(name, JavaType.FLOAT));
+    }
+
+    public double getDouble(String name) {
+        return Double.longBitsToDouble(getBits(name, JavaType.DOUBLE));
+    }
+
+    public boolean getBoolean(String name) {
+        return getBits(name, JavaType.BOOLEAN) != 0;
+    }
 
-        return fieldValues.get(number);
+    public void setInt(String name, int value) {
+        setBits(name, JavaType.INT, value);
     }
 
+    public void setLong(String name, long value) {
+        setBits(name, JavaType.LONG, value);
+    }
+
+    public void setFloat(String name, float value) {
+        setBits(name, JavaType.FLOAT, Float.floatToRawIntBits(value));
+    }
+
+    public void setDouble(String name, double value) {
+        setBits(name, JavaType.DOUBLE, Double.doubleToRawLongBits(value));
+    }
+
+    public void setBoolean(String name, boolean value) {
+        setBits(name, JavaType.BOOLEAN, value ? 1 : 0);
+    }
+
+    // Copy of the fields that are set, by field number
     public Map<Integer, Object> getFields() {
-        return fieldValues;
+        Map<Integer, Object> fields = new LinkedHashMap<>();
+        for (FieldPlan field : plan.getFields()) {
+            if (isPresent(field.slot)) {
+                fields.put(field.number, getValue(field));
+            }
+        }
+        return fields;
     }
 
     public Map<Integer, String> getFieldNames() {
-        return fieldNames;
+        Map<Integer, String> names = new LinkedHashMap<>();
+        for (FieldPlan field : plan.getFields()) {
+            if (isPresent(field.slot)) {
+                names.put(field.number, field.identifier);
+            }
+        }
+        return names;
     }
 
     public void serialize(OutputStream out) throws Exception {
-        assertRequiredFields();
+        out.write(toByteArray());
+    }
+
+    public byte[] toByteArray() throws Exception {
+        byte[] buffer = new byte[getSerializedSize()];
+        writeTo(buffer, 0);
+        return buffer;
+    }
 
-        for (Map.Entry<Integer, Object> entry : fieldValues.entrySet()) {
-            Integer fieldNumber = entry.getKey();
-            MessageField fieldDefinition = definition.fields.get(fieldNumber);
+    // Sizes every message in the tree, writeTo relies on them until the next change
+    @Override
+    public int getSerializedSize() throws Exception {
+        return computeSize();
+    }
 
-            if (fieldDefinition.modifier != MessageFieldModifier.OPTIONAL || entry.getValue() != null) {
-                if (fieldDefinition.modifier == MessageFieldModifier.REPEATED) {
-                    Object[] values = (Object[]) entry.getValue();
-                    for (Object value : values) {
-                        writeField(out, fieldNumber, fieldDefinition, value);
-                    }
+    // Writes the message sized by the last getSerializedSize call, returns the end offset
+    @Override
+    public int writeTo(byte[] buffer, int offset) throws Exception {
+        if (plan.codec != null) {
+            return plan.codec.writeTo(this, buffer, offset);
+        }
+
+        for (FieldPlan field : plan.getFields()) {
+            if (!isPresent(field.slot)) {
+                continue;
+            }
+
+            if (field.primitive) {
+                offset = writeScalar(buffer, offset, field, scalars[field.slot]);
+            } else {
+                offset = writeSlot(buffer, offset, field);
+            }
+        }
+        return offset;
+    }
+
+    // Writes a present field that is not primitive
+    int writeSlot(byte[] buffer, int offset, FieldPlan field) throws Exception {
+        Object value = values[field.slot];
+        if (value instanceof EncodedField) {
+            return ((EncodedField) value).writeTo(source, buffer, offset);
+        } else if (field.packed) {
+            int length = packedLength(field, value);
+            if (length == 0) {
+                return offset;
+            }
+
+            offset = writeTag(buffer, offset, field.packedTag);
+            offset = Wire.writeVarint(buffer, offset, packedSize(field, value));
+            for (int i = 0; i < length; i++) {
+                if (field.kind == FieldKind.ENUM) {
+                    offset = Wire.writeVarint(buffer, offset, enumNumber(field, ((Object[]) value)[i]));
                 } else {
-                    writeField(out, fieldNumber, fieldDefinition, entry.getValue());
+                    offset = writeScalarValue(buffer, offset, field, elementBits(value, i));
                 }
             }
+        } else if (field.modifier == MessageFieldModifier.REPEATED) {
+            for (Object element : (Object[]) value) {
+                offset = writeField(buffer, offset, field, element);
+            }
+        } else if (field.modifier == MessageFieldModifier.MAP) {
+            FieldPlan[] entryFields = field.message.getFields();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                int entrySize = fieldSize(entryFields[0], entry.getKey()) + fieldSize(entryFields[1], entry.getValue());
+                offset = writeTag(buffer, offset, field.tag);
+                offset = Wire.writeVarint(buffer, offset, entrySize);
+                offset = writeField(buffer, offset, entryFields[0], entry.getKey());
+                offset = writeField(buffer, offset, entryFields[1], entry.getValue());
+            }
+        } else {
+            offset = writeField(buffer, offset, field, value);
         }
+        return offset;
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append(definition.identifier).append(" {");
-        for (Map.Entry<Integer, Object> entry : fieldValues.entrySet()) {
-            Integer fieldNumber = entry.getKey();
-            String fieldName = fieldNames.get(fieldNumber);
-            Object value = entry.getValue();
-            sb.append("\n  ").append(fieldName).append(": ").append(value);
+        sb.append(plan.identifier).append(" {");
+        for (FieldPlan field : plan.getFields()) {
+            if (isPresent(field.slot)) {
+                sb.append("\n  ").append(field.identifier).append(": ").append(getValue(field));
+            }
         }
         sb.append("\n}");
         return sb.toString();
     }
 
-    private void writeVarint(OutputStream out, long value) throws Exception {
-        while ((value & ~0x7F) != 0) {
-            byte b = (byte) ((value & 0x7F) | 0x80);
-            out.write(b);
-            value >>>= 7;
+    private FieldPlan getFieldPlan(String name) {
+        FieldPlan field = plan.getField(name);
+        if (field == null) {
+            throw new IllegalArgumentException("Unknown field: " + name);
         }
-        out.write((byte) value);
+        return field;
     }
 
-    private int readVarint(InputStream in) throws Exception {
-        int result = 0;
-        int shift = 0;
-        while (true) {
-            try {
-                byte b = (byte) in.read();
+    private FieldPlan getPrimitiveField(String name, JavaType type) {
+        FieldPlan field = getFieldPlan(name);
+        if (!field.primitive || field.kind.javaType != type) {
+            throw new IllegalArgumentException("Field " + name + " is not a singular " + type.name().toLowerCase() + " field");
+        }
+        return field;
+    }
 
-                result |= (b & 0x7F) << shift;
-                if ((b & 0x80) == 0) {
-                    return result;
-                }
-                shift += 7;
-            } catch (IndexOutOfBoundsException e) {
-                throw new Exception("Unexpected end of input");
-            }
+    private long getBits(String name, JavaType type) {
+        FieldPlan field = getPrimitiveField(name, type);
+        return isPresent(field.slot) ? scalars[field.slot] : 0;
+    }
+
+    private void setBits(String name, JavaType type, long bits) {
+        FieldPlan field = getPrimitiveField(name, type);
+        clearOneof(field);
+        scalars[field.slot] = bits;
+        setPresent(field.slot);
+    }
+
+    private Object getValue(FieldPlan field) {
+        if (!isPresent(field.slot)) {
+            return null;
+        }
+        if (field.primitive) {
+            return fromBits(field, scalars[field.slot]);
+        }
 
-            if (shift > 35) {
-                throw new Exception("Varint too long");
+        Object value = values[field.slot];
+        if (value instanceof EncodedField) {
+            try {
+                value = decodeField(field, (EncodedField) value);
+            } catch (Exception e) {
+                throw new IllegalStateException("Invalid data for field " + field.identifier + " : " + e.getMessage());
             }
+            values[field.slot] = value;
         }
+        return value;
+    }
+
+    private boolean isPresent(int slot) {
+        return (present[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    private void setPresent(int slot) {
+        present[slot >>> 6] |= 1L << slot;
     }
 
-    private void writeTag(OutputStream out, int fieldNumber, int wireType) throws Exception {
-        writeVarint(out, (fieldNumber << 3) | wireType);
+    private void clear(int slot) {
+        present[slot >>> 6] &= ~(1L << slot);
+        values[slot] = null;
     }
 
-    private void writeField(OutputStream out, Integer fieldNumber, MessageField fieldDefinition, Object value) throws Exception {
-        switch (fieldDefinition.type) {
-            case "int32" -> {
-                writeTag(out, fieldNumber, WIRE_TYPE_VARINT);
-                writeVarint(out, (int) value);
+    // Setting one member of a oneof clears the others
+    private void clearOneof(FieldPlan field) {
+        int[] members = plan.getOneofSlots(field);
+        if (members != null) {
+            for (int slot : members) {
+                clear(slot);
             }
-            case "int64" -> {
-                writeTag(out, fieldNumber, WIRE_TYPE_VARINT);
-                writeVarint(out, (long) value);
+        }
+    }
+
+    // Repeated scalars are int[] for 32 bit kinds, long[] for 64 bit kinds, float[], double[]
+    // and boolean[]. Boxed Object[] values are converted when set.
+    private static Object newScalarArray(FieldPlan field, long[] bits, int count) {
+        switch (field.kind) {
+            case BOOL -> {
+                boolean[] array = new boolean[count];
+                for (int i = 0; i < count; i++) {
+                    array[i] = bits[i] != 0;
+                }
+                return array;
             }
-            case "bool" -> {
-                writeTag(out, fieldNumber, WIRE_TYPE_VARINT);
-                writeVarint(out, (boolean) value ? 1 : 0);
+            case INT64, UINT64, SINT64, FIXED64, SFIXED64 -> {
+                return Arrays.copyOf(bits, count);
             }
-            case "string" -> {
-                writeTag(out, fieldNumber, WIRE_TYPE_LENGTH_DELIMITED);
-                writeVarint(out, ((String) value).length());
-                out.write(((String) value).getBytes());
+            case FLOAT -> {
+                float[] array = new float[count];
+                for (int i = 0; i < count; i++) {
+                    array[i] = Float.intBitsToFloat((int) bits[i]);
+                }
+                return array;
             }
-            case "bytes" -> {
-                writeTag(out, fieldNumber, WIRE_TYPE_LENGTH_DELIMITED);
-                writeVarint(out, ((byte[]) value).length);
-                out.write(((byte[]) value));
+            case DOUBLE -> {
+                double[] array = new double[count];
+                for (int i = 0; i < count; i++) {
+                    array[i] = Double.longBitsToDouble(bits[i]);
+                }
+                return array;
             }
             default -> {
-                Definition fieldTypeDefinition = pb.getDefinitions().get(fieldDefinition.type);
-                if (fieldTypeDefinition == null) {
-                    fieldTypeDefinition = pb.getDefinitions().get(definition.identifier + "." + fieldDefinition.type);
+                int[] array = new int[count];
+                for (int i = 0; i < count; i++) {
+                    array[i] = (int) bits[i];
                 }
+                return array;
+            }
+        }
+    }
 
-                if (fieldTypeDefinition == null) {
-                    throw new Exception("Unknown field definition for: " + fieldDefinition.identifier);
-                }
+    private static Object toScalarArray(FieldPlan field, Object value) {
+        if (!(value instanceof Object[])) {
+            Object expected = newScalarArray(field, new long[0], 0);
+            if (value.getClass() != expected.getClass()) {
+                throw new IllegalArgumentException("Field " + field.identifier + " takes " + expected.getClass().getSimpleName());
+            }
+            return value;
+        }
 
-                if (fieldTypeDefinition instanceof EnumDefinition) {
-                    writeTag(out, fieldNumber, WIRE_TYPE_VARINT);
-                    String enumValue = (String) value;
-                    Integer enumNumber = ((EnumDefinition) fieldTypeDefinition).values.get(enumValue);
-                    if (enumNumber == null) {
-                        throw new Exception("Unknown enum value: " + enumValue);
-                    }
-                    writeVarint(out, enumNumber);
-                } else if (fieldTypeDefinition instanceof MessageDefinition) {
-
-                    if (fieldDefinition.modifier == MessageFieldModifier.MAP) {
-                        MessageDefinition mapDefinition = ((MessageDefinition) fieldTypeDefinition);
-                        if (value instanceof Map<?, ?>) {
-                            Map<?, ?> mapObj = (Map<?, ?>) value;
-
-                            for (Map.Entry<?, ?> entry : mapObj.entrySet()) {
-                                MessageObject obj = new MessageObject(pb, mapDefinition.identifier);
-                                obj.setField("key", entry.getKey());
-                                obj.setField("value", entry.getValue());
-
-                                ByteArrayOutputStream b = new ByteArrayOutputStream();
-                                obj.serialize(b);
-
-                                writeTag(out, fieldNumber, WIRE_TYPE_LENGTH_DELIMITED);
-                                writeVarint(out, b.size());
-                                out.write(b.toByteArray());
-                            }
-                        } else {
-                            throw new Exception("Field is map, but value is not a map");
-                        }
-                    } else {
-                        MessageObject obj = (MessageObject) value;
-                        ByteArrayOutputStream b = new ByteArrayOutputStream();
-                        obj.serialize(b);
+        Object[] elements = (Object[]) value;
+        long[] bits = new long[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            bits[i] = toBits(field, elements[i]);
+        }
+        return newScalarArray(field, bits, elements.length);
+    }
 
-                        writeTag(out, fieldNumber, WIRE_TYPE_LENGTH_DELIMITED);
-                        writeVarint(out, b.size());
-                        out.write(b.toByteArray());
-                    }
-                } else {
-                    throw new Exception("Unknown field definition for: " + fieldDefinition.type);
+    private static int scalarArrayLength(Object array) {
+        if (array instanceof int[]) {
+            return ((int[]) array).length;
+        } else if (array instanceof long[]) {
+            return ((long[]) array).length;
+        } else if (array instanceof boolean[]) {
+            return ((boolean[]) array).length;
+        } else if (array instanceof float[]) {
+            return ((float[]) array).length;
+        }
+        return ((double[]) array).length;
+    }
+
+    private static long elementBits(Object array, int index) {
+        if (array instanceof int[]) {
+            return ((int[]) array)[index];
+        } else if (array instanceof long[]) {
+            return ((long[]) array)[index];
+        } else if (array instanceof boolean[]) {
+            return ((boolean[]) array)[index] ? 1 : 0;
+        } else if (array instanceof float[]) {
+            return Float.floatToRawIntBits(((float[]) array)[index]);
+        }
+        return Double.doubleToRawLongBits(((double[]) array)[index]);
+    }
+
+    // Scalars are kept as raw bits, 32 bit kinds sign extended and floating point kinds as their
+    // IEEE 754 representation
+    private static long toBits(FieldPlan field, Object value) {
+        return switch (field.kind) {
+            case BOOL -> (boolean) value ? 1 : 0;
+            case FLOAT -> Float.floatToRawIntBits(((Number) value).floatValue());
+            case DOUBLE -> Double.doubleToRawLongBits(((Number) value).doubleValue());
+            case INT32, UINT32, SINT32, FIXED32, SFIXED32 -> ((Number) value).intValue();
+            default -> ((Number) value).longValue();
+        };
+    }
+
+    private static Object fromBits(FieldPlan field, long bits) {
+        return switch (field.kind) {
+            case INT32, UINT32, SINT32, FIXED32, SFIXED32 -> (int) bits;
+            case BOOL -> bits != 0;
+            case FLOAT -> Float.intBitsToFloat((int) bits);
+            case DOUBLE -> Double.longBitsToDouble(bits);
+            default -> bits;
+        };
+    }
+
+    private static int writeTag(byte[] buffer, int offset, byte[] tag) {
+        System.arraycopy(tag, 0, buffer, offset, tag.length);
+        return offset + tag.length;
+    }
+
+    // bytes fields are set as arrays and decoded as read only buffers
+    private static int bytesLength(Object value) {
+        return (value instanceof ByteBuffer) ? ((ByteBuffer) value).remaining() : ((byte[]) value).length;
+    }
+
+    // Size pass, children are sized first so fieldSize can use their memoized sizes
+    private int computeSize() throws Exception {
+        if (plan.codec != null) {
+            return plan.codec.computeSize(this);
+        }
+
+        assertRequiredFields();
+
+        int size = 0;
+        for (FieldPlan field : plan.getFields()) {
+            if (!isPresent(field.slot)) {
+                continue;
+            }
+
+            if (field.primitive) {
+                size += field.tag.length + scalarSize(field, scalars[field.slot]);
+            } else {
+                size += slotSize(field);
+            }
+        }
+
+        serializedSize = size;
+        return size;
+    }
+
+    // Size of a present field that is not primitive, tags included
+    int slotSize(FieldPlan field) throws Exception {
+        Object value = values[field.slot];
+        if (value instanceof EncodedField) {
+            return ((EncodedField) value).size;
+        } else if (field.packed) {
+            if (packedLength(field, value) == 0) {
+                return 0;
+            }
+            int packedSize = packedSize(field, value);
+            return field.packedTag.length + Wire.varintSize(packedSize) + packedSize;
+        } else if (field.modifier == MessageFieldModifier.REPEATED) {
+            int size = 0;
+            for (Object element : (Object[]) value) {
+                if (element instanceof MessageObject) {
+                    ((MessageObject) element).computeSize();
                 }
+                size += fieldSize(field, element);
             }
+            return size;
+        } else if (field.modifier == MessageFieldModifier.MAP) {
+            int size = 0;
+            FieldPlan[] entryFields = field.message.getFields();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (entry.getKey() == null || entry.getValue() == null) {
+                    throw new Exception("Map entry not set for: " + field.identifier);
+                }
+                if (entry.getValue() instanceof MessageObject) {
+                    ((MessageObject) entry.getValue()).computeSize();
+                }
+                int entrySize = fieldSize(entryFields[0], entry.getKey()) + fieldSize(entryFields[1], entry.getValue());
+                size += field.tag.length + Wire.varintSize(entrySize) + entrySize;
+            }
+            return size;
         }
+
+        if (value instanceof MessageObject) {
+            ((MessageObject) value).computeSize();
+        }
+        return fieldSize(field, value);
     }
 
-    private void assertRequiredFields() throws Exception {
-        for (Map.Entry<Integer, MessageField> entry : definition.fields.entrySet()) {
-            Integer fieldNumber = entry.getKey();
-            MessageField fieldDefinition = entry.getValue();
-            Object value = fieldValues.get(fieldNumber);
-            String oneof = definition.oneofs.get(fieldNumber);
+    // Payload of a packed record, the values without their tags
+    private static int packedSize(FieldPlan field, Object array) throws Exception {
+        int size = 0;
+        if (field.kind == FieldKind.ENUM) {
+            for (Object element : (Object[]) array) {
+                size += Wire.varintSize(enumNumber(field, element));
+            }
+            return size;
+        }
+        for (int i = 0, length = scalarArrayLength(array); i < length; i++) {
+            size += scalarSize(field, elementBits(array, i));
+        }
+        return size;
+    }
+
+    // Repeated enums are kept as names and numbers like singular ones, not in a primitive array
+    private static int packedLength(FieldPlan field, Object array) {
+        return (field.kind == FieldKind.ENUM) ? ((Object[]) array).length : scalarArrayLength(array);
+    }
 
+    private static int scalarSize(FieldPlan field, long bits) throws Exception {
+        return switch (field.kind) {
+            case INT32, INT64, UINT64, BOOL -> Wire.varintSize(bits);
+            case UINT32 -> Wire.varintSize(bits & 0xFFFFFFFFL);
+            case SINT32, SINT64 -> Wire.varintSize(Wire.zigzag(bits));
+            case FIXED32, SFIXED32, FLOAT -> 4;
+            case FIXED64, SFIXED64, DOUBLE -> 8;
+            default -> throw new Exception("Unsupported field type " + field.kind.typeName + " for: " + field.identifier);
+        };
+    }
+
+    // Tag included, nested messages must already be sized
+    private static int fieldSize(FieldPlan field, Object value) throws Exception {
+        int size = switch (field.kind) {
+            case STRING -> Wire.stringSize((String) value);
+            case BYTES -> Wire.varintSize(bytesLength(value)) + bytesLength(value);
+            case ENUM -> Wire.varintSize(enumNumber(field, value));
+            case MESSAGE -> Wire.varintSize(((MessageObject) value).serializedSize) + ((MessageObject) value).serializedSize;
+            default -> scalarSize(field, toBits(field, value));
+        };
+        return field.tag.length + size;
+    }
+
+    // Names as set by handlers, numbers as decoded when the name is unknown
+    private static int enumNumber(FieldPlan field, Object value) throws Exception {
+        Integer enumNumber = (value instanceof Integer) ? (Integer) value : field.enumValues.get((String) value);
+        if (enumNumber == null) {
+            throw new Exception("Unknown enum value: " + value);
+        }
+        return enumNumber;
+    }
+
+    private static int writeScalar(byte[] buffer, int offset, FieldPlan field, long bits) throws Exception {
+        return writeScalarValue(buffer, writeTag(buffer, offset, field.tag), field, bits);
+    }
+
+    private static int writeScalarValue(byte[] buffer, int offset, FieldPlan field, long bits) throws Exception {
+        return switch (field.kind) {
+            case INT32, INT64, UINT64, BOOL -> Wire.writeVarint(buffer, offset, bits);
+            case UINT32 -> Wire.writeVarint(buffer, offset, bits & 0xFFFFFFFFL);
+            case SINT32, SINT64 -> Wire.writeVarint(buffer, offset, Wire.zigzag(bits));
+            case FIXED32, SFIXED32, FLOAT -> Wire.writeFixed32(buffer, offset, (int) bits);
+            case FIXED64, SFIXED64, DOUBLE -> Wire.writeFixed64(buffer, offset, bits);
+            default -> throw new Exception("Unsupported field type " + field.kind.typeName + " for: " + field.identifier);
+        };
+    }
+
+    private static int writeField(byte[] buffer, int offset, FieldPlan field, Object value) throws Exception {
+        return switch (field.kind) {
+            case STRING -> Wire.writeString(buffer, writeTag(buffer, offset, field.tag), (String) value);
+            case BYTES -> {
+                offset = writeTag(buffer, offset, field.tag);
+                yield (value instanceof ByteBuffer) ? Wire.writeBytes(buffer, offset, (ByteBuffer) value) : Wire.writeBytes(buffer, offset, (byte[]) value);
+            }
+            case ENUM -> Wire.writeVarint(buffer, writeTag(buffer, offset, field.tag), enumNumber(field, value));
+            case MESSAGE -> {
+                MessageObject obj = (MessageObject) value;
+                offset = writeTag(buffer, offset, field.tag);
+                offset = Wire.writeVarint(buffer, offset, obj.serializedSize);
+                yield obj.writeTo(buffer, offset);
+            }
+            default -> writeScalar(buffer, offset, field, toBits(field, value));
+        };
+    }
+
+    void assertRequiredFields() throws Exception {
+        for (FieldPlan field : plan.getFields()) {
+            if (isPresent(field.slot)) {
+                continue;
+            }
+
+            int[] oneof = plan.getOneofSlots(field);
             if (oneof != null) {
                 boolean oneofSet = false;
-                for (Map.Entry<Integer, String> oneOfEntry : definition.oneofs.entrySet()) {
-                    if (oneOfEntry.getValue().equals(oneof) && fieldValues.containsKey(oneOfEntry.getKey())) {
+                for (int slot : oneof) {
+                    if (isPresent(slot)) {
                         oneofSet = true;
                         break;
                     }
                 }
 
                 if (!oneofSet) {
-                    throw new Exception("Required oneof not set: " + oneof);
-                }
-            } else {
-                if (value == null &&
-                        fieldDefinition.modifier != MessageFieldModifier.OPTIONAL
-                        && fieldDefinition.modifier != MessageFieldModifier.REPEATED) {
-                    throw new Exception("Required field not set: " + fieldDefinition.identifier);
+                    throw new Exception("Required oneof not set: " + field.oneof);
                 }
+            } else if (field.modifier == null) {
+                // Singular fields only, repeated fields and maps are absent from the wire when empty
+                throw new Exception("Required field not set: " + field.identifier);
             }
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private void deserialize(InputStream in) throws Exception {
-        while (in.available() > 0) {
-            long tag = readVarint(in);
+    // Every occurrence of a field left encoded by a lazy decode, as tag to end of value ranges
+    private static class EncodedField {
+        private int[] bounds = new int[2];
+        private int count = 0;
+        private int size = 0;
 
-            int fieldNumber = (int) (tag >> 3);
-            int wireType = (int) (tag & 0x7);
+        void add(int start, int end) {
+            if (count * 2 == bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            bounds[count * 2] = start;
+            bounds[count * 2 + 1] = end;
+            count++;
+            size += end - start;
+        }
 
-            MessageField fieldDefinition = definition.fields.get(fieldNumber);
-            if (fieldDefinition == null) {
-                throw new Exception("Unknown field number: " + fieldNumber);
+        int writeTo(byte[] source, byte[] buffer, int offset) {
+            for (int i = 0; i < count; i++) {
+                int length = bounds[i * 2 + 1] - bounds[i * 2];
+                System.arraycopy(source, bounds[i * 2], buffer, offset, length);
+                offset += length;
             }
+            return offset;
+        }
+    }
 
-            Object value;
+    // Repeated values collected while decoding, grown by doubling and turned into the
+    // field's array type once the message is done
+    private static class Accumulator {
+        private long[] bits;
+        private Object[] objects;
+        private int count = 0;
+
+        void add(long value) {
+            if (bits == null) {
+                bits = new long[8];
+            } else if (count == bits.length) {
+                bits = Arrays.copyOf(bits, count * 2);
+            }
+            bits[count++] = value;
+        }
 
-            switch (wireType) {
-                case WIRE_TYPE_VARINT -> value = readVarint(in);
-                case WIRE_TYPE_LENGTH_DELIMITED -> {
-                    int length = readVarint(in);
-                    value = in.readNBytes(length);
-                }
-                default -> throw new Exception("Unknown wire type: " + wireType);
-            }
-
-            switch (fieldDefinition.type) {
-                case "int32":
-                case "int64":
-                case "bytes":
-                    break;
-                case "bool":
-                    value = (int) value != 0;
-                    break;
-                case "string":
-                    assert value instanceof byte[];
-                    value = new String((byte[]) value);
-                    break;
-                default: {
-                    Definition fieldTypeDefinition = pb.getDefinitions().get(fieldDefinition.type);
-                    if (fieldTypeDefinition == null) {
-                        fieldTypeDefinition = pb.getDefinitions().get(definition.identifier + "." + fieldDefinition.type);
-                    }
+        void add(Object value) {
+            if (objects == null) {
+                objects = new Object[8];
+            } else if (count == objects.length) {
+                objects = Arrays.copyOf(objects, count * 2);
+            }
+            objects[count++] = value;
+        }
 
-                    if (fieldTypeDefinition == null) {
-                        throw new Exception("Unknown field definition for: " + fieldDefinition.identifier);
-                    }
+        Object toArray(FieldPlan field) {
+            return field.scalar ? newScalarArray(field, bits, count) : Arrays.copyOf(objects, count);
+        }
+    }
 
-                    if (!(fieldTypeDefinition instanceof EnumDefinition)) {
-                        if (fieldTypeDefinition instanceof MessageDefinition) {
-                            MessageObject obj = new MessageObject(pb, fieldDefinition.type);
-                            assert value instanceof byte[];
-                            ByteArrayInputStream a = new ByteArrayInputStream((byte[]) value);
-                            obj.deserialize(a);
-                            value = obj;
-                        } else {
-                            throw new Exception("Unknown field definition for: " + fieldDefinition.identifier);
-                        }
-                    }
+    @SuppressWarnings("unchecked")
+    private Object decodeField(FieldPlan field, EncodedField encoded) throws Exception {
+        Wire.Input in = new Wire.Input(source, 0, 0);
+        Object[] elements = (field.modifier == MessageFieldModifier.REPEATED) ? new Object[encoded.count] : null;
+        Map<Object, Object> map = (field.modifier == MessageFieldModifier.MAP) ? new HashMap<>() : null;
+        Object value = null;
+
+        for (int i = 0; i < encoded.count; i++) {
+            in.position = encoded.bounds[i * 2];
+            in.limit = encoded.bounds[i * 2 + 1];
+            in.readVarint(); // Tag
+
+            if (map != null) {
+                readMapEntry(in, field, map, true);
+            } else {
+                value = readValue(in, field, true);
+                if (elements != null) {
+                    elements[i] = value;
                 }
             }
+        }
 
-            if (fieldDefinition.modifier == MessageFieldModifier.REPEATED) {
-                if (fieldValues.containsKey(fieldNumber) ) {
-                    Object existingValue = fieldValues.get(fieldNumber);
-                    Object[] values = (Object[]) existingValue;
-                    Object[] newValues = new Object[values.length + 1];
+        if (map != null) {
+            return map;
+        }
+        return (elements != null) ? elements : value;
+    }
 
-                    System.arraycopy(values, 0, newValues, 0, values.length);
-                    newValues[values.length] = value;
-                    fieldValues.put(fieldNumber, newValues);
-                } else {
-                    fieldValues.put(fieldNumber, new Object[]{value});
-                }
-            } else if (fieldDefinition.modifier == MessageFieldModifier.MAP) {
-                MessageObject obj = (MessageObject) value;
+    private void deserialize(Wire.Input in, boolean lazy) throws Exception {
+        if (lazy) {
+            source = in.buffer;
+        }
+        if (plan.codec != null) {
+            plan.codec.deserialize(this, in, lazy);
+            return;
+        }
 
-                Object key = obj.getField("key");
-                Object mapValue = obj.getField("value");
+        boolean accumulated = false;
+        while (in.position < in.limit) {
+            int start = in.position;
+            accumulated |= readField(in, start, in.readVarint(), lazy);
+        }
+        finishDeserialize(accumulated);
+    }
 
-                if (fieldValues.containsKey(fieldNumber)) {
-                    Map<Object, Object> map = (Map<Object, Object>) fieldValues.get(fieldNumber);
-                    map.put(key, mapValue);
-                } else {
-                    Map<Object, Object> map = new HashMap<>();
-                    map.put(key, mapValue);
-                    fieldValues.put(fieldNumber, map);
+    // Decodes the record whose tag was just read, returns true when the field is accumulated
+    // and needs finishDeserialize
+    @SuppressWarnings("unchecked")
+    boolean readField(Wire.Input in, int start, long tag, boolean lazy) throws Exception {
+        int fieldNumber = (int) (tag >>> 3);
+        int wireType = (int) (tag & 0x7);
+
+        FieldPlan field = plan.getField(fieldNumber);
+        if (field == null) {
+            throw new Exception("Unknown field number: " + fieldNumber);
+        }
+        boolean packedRecord = field.packed && wireType == WireType.LENGTH_DELIMITED.value;
+        if (wireType != field.kind.wireType.value && !packedRecord) {
+            throw new Exception("Unexpected wire type " + wireType + " for: " + field.identifier);
+        }
+        if (field.oneof != null) {
+            clearOneof(field);
+        }
+
+        if (field.primitive) {
+            scalars[field.slot] = readScalar(in, field);
+            setPresent(field.slot);
+            return false;
+        }
+
+        boolean accumulated = false;
+        Object existing = values[field.slot];
+        if (lazy && field.kind.wireType == WireType.LENGTH_DELIMITED) {
+            int length = in.readLength();
+            in.position += length;
+
+            // Only the last occurrence of a singular field counts
+            if (!(existing instanceof EncodedField) || (field.modifier != MessageFieldModifier.REPEATED && field.modifier != MessageFieldModifier.MAP)) {
+                existing = new EncodedField();
+                values[field.slot] = existing;
+            }
+            ((EncodedField) existing).add(start, in.position);
+        } else if (field.modifier == MessageFieldModifier.REPEATED) {
+            if (existing == null) {
+                existing = new Accumulator();
+                values[field.slot] = existing;
+                accumulated = true;
+            }
+            if (packedRecord) {
+                // Packed and unpacked records of the same field may be mixed
+                int length = in.readLength();
+                int limit = in.limit;
+                in.limit = in.position + length;
+                while (in.position < in.limit) {
+                    if (field.kind == FieldKind.ENUM) {
+                        ((Accumulator) existing).add(readValue(in, field, lazy));
+                    } else {
+                        ((Accumulator) existing).add(readScalar(in, field));
+                    }
                 }
+                in.limit = limit;
+            } else if (field.scalar) {
+                ((Accumulator) existing).add(readScalar(in, field));
             } else {
-                fieldValues.put(fieldNumber, value);
+                ((Accumulator) existing).add(readValue(in, field, lazy));
+            }
+        } else if (field.modifier == MessageFieldModifier.MAP) {
+            if (existing == null) {
+                existing = new HashMap<>();
+                values[field.slot] = existing;
             }
+            readMapEntry(in, field, (Map<Object, Object>) existing, lazy);
+        } else {
+            values[field.slot] = readValue(in, field, lazy);
+        }
+        setPresent(field.slot);
+        return accumulated;
+    }
 
-            fieldNames.put(fieldNumber, fieldDefinition.identifier);
+    void finishDeserialize(boolean accumulated) throws Exception {
+        if (accumulated) {
+            for (FieldPlan field : plan.getFields()) {
+                if (values[field.slot] instanceof Accumulator) {
+                    values[field.slot] = ((Accumulator) values[field.slot]).toArray(field);
+                }
+            }
         }
 
         assertRequiredFields();
     }
+
+    private static long readScalar(Wire.Input in, FieldPlan field) throws Exception {
+        return switch (field.kind) {
+            case INT32, UINT32 -> (int) in.readVarint();
+            case INT64, UINT64 -> in.readVarint();
+            case SINT32 -> (int) Wire.unzigzag(in.readVarint() & 0xFFFFFFFFL);
+            case SINT64 -> Wire.unzigzag(in.readVarint());
+            case BOOL -> in.readVarint() != 0 ? 1 : 0;
+            case FIXED32, SFIXED32, FLOAT -> in.readFixed32();
+            case FIXED64, SFIXED64, DOUBLE -> in.readFixed64();
+            default -> throw new Exception("Unsupported field type " + field.kind.typeName + " for: " + field.identifier);
+        };
+    }
+
+    private static Object readValue(Wire.Input in, FieldPlan field, boolean lazy) throws Exception {
+        switch (field.kind) {
+            case STRING -> {
+                return in.readString();
+            }
+            case BYTES -> {
+                int length = in.readLength();
+                ByteBuffer value = ByteBuffer.wrap(in.buffer, in.position, length).slice().asReadOnlyBuffer();
+                in.position += length;
+                return value;
+            }
+            case ENUM -> {
+                int number = (int) in.readVarint();
+                String name = field.enumNames.get(number);
+                return (name != null) ? name : number;
+            }
+            case MESSAGE -> {
+                int length = in.readLength();
+                int limit = in.limit;
+                in.limit = in.position + length;
+
+                MessageObject obj = new MessageObject(field.message);
+                obj.deserialize(in, lazy);
+
+                in.limit = limit;
+                return obj;
+            }
+            default -> {
+                return fromBits(field, readScalar(in, field));
+            }
+        }
+    }
+
+    // Map entries are decoded straight into the map, fields missing from an entry take
+    // their default value
+    private static void readMapEntry(Wire.Input in, FieldPlan field, Map<Object, Object> map, boolean lazy) throws Exception {
+        FieldPlan[] entryFields = field.message.getFields();
+        int length = in.readLength();
+        int limit = in.limit;
+        in.limit = in.position + length;
+
+        Object key = null;
+        Object value = null;
+        while (in.position < in.limit) {
+            long tag = in.readVarint();
+            int entryNumber = (int) (tag >>> 3);
+            if (entryNumber < 1 || entryNumber > 2) {
+                throw new Exception("Unknown field number in map entry: " + entryNumber);
+            }
+
+            FieldPlan entryField = entryFields[entryNumber - 1];
+            if ((int) (tag & 0x7) != entryField.kind.wireType.value) {
+                throw new Exception("Unexpected wire type " + (tag & 0x7) + " for: " + field.identifier);
+            }
+            if (entryNumber == 1) {
+                key = readValue(in, entryField, lazy);
+            } else {
+                value = readValue(in, entryField, lazy);
+            }
+        }
+        in.limit = limit;
+
+        map.put((key != null) ? key : defaultValue(entryFields[0]), (value != null) ? value : defaultValue(entryFields[1]));
+    }
+
+    private static Object defaultValue(FieldPlan field) {
+        return switch (field.kind) {
+            case STRING -> "";
+            case BYTES -> ByteBuffer.allocate(0).asReadOnlyBuffer();
+            case ENUM -> field.enumNames.containsKey(0) ? field.enumNames.get(0) : (Object) 0;
+            case MESSAGE -> new MessageObject(field.message);
+            default -> fromBits(field, 0);
+        };
+    }
 }
@@ -0,0 +1,54 @@
+package jrpc;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import jrpc.ProtocolBuffers.MessagePlan;
+
+// Reset messages kept by type so they can be decoded into or filled again, one pool is used by
+// a connection and shared by its handlers. Only top level messages are recycled, nested ones
+// may still be referenced from elsewhere.
+public class MessagePool {
+    private static final int MAX_POOLED_PER_TYPE = 64;
+
+    private final ProtocolBuffers pb;
+    private final Map<MessagePlan, ArrayDeque<MessageObject>> pooled = new HashMap<>();
+
+    public MessagePool(ProtocolBuffers pb) {
+        this.pb = pb;
+    }
+
+    public MessageObject acquire(String name) throws Exception {
+        MessagePlan plan = pb.getPlan(name);
+        if (plan == null) {
+            throw new Exception("Unknown message definition: " + name);
+        }
+        return acquire(plan);
+    }
+
+    synchronized MessageObject acquire(MessagePlan plan) {
+        ArrayDeque<MessageObject> messages = pooled.get(plan);
+        MessageObject message = (messages != null) ? messages.poll() : null;
+        if (message == null) {
+            message = new MessageObject(plan);
+            message.pool = this;
+        }
+        return message;
+    }
+
+    // The message must not be used by the caller afterwards
+    public void release(MessageObject message) {
+        if (message == null || message.pool != this) {
+            return;
+        }
+
+        message.reset();
+        synchronized (this) {
+            ArrayDeque<MessageObject> messages = pooled.computeIfAbsent(message.getPlan(), type -> new ArrayDeque<>());
+            if (messages.size() < MAX_POOLED_PER_TYPE) {
+                messages.add(message);
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package jrpc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Non blocking transport, a few event loops own all socket reads and writes
+// while handlers keep running on the server's handler pool
+class NioTransport {
+    private static final int SELECT_TIMEOUT_MS = 1000;
+
+    private final GrpcServer server;
+    private final int port;
+    private final EventLoop[] eventLoops;
+
+    NioTransport(GrpcServer server, int port, int eventLoopCount) throws IOException {
+        this.server = server;
+        this.port = port;
+        this.eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop();
+        }
+    }
+
+    public void start() throws IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            Thread thread = new Thread(eventLoops[i], "jrpc-event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.err.println("INFO: Server is listening on port " + port + " (nio, " + eventLoops.length + " event loops)");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            }
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<NioChannel> pendingWrites = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        void requestWrite(NioChannel channel) {
+            pendingWrites.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastIdleCheck = System.currentTimeMillis();
+
+            while (true) {
+                try {
+                    selector.select(SELECT_TIMEOUT_MS);
+
+                    SocketChannel accepted;
+                    while ((accepted = registrations.poll()) != null) {
+                        NioChannel channel = new NioChannel(accepted, this);
+                        channel.key = accepted.register(selector, SelectionKey.OP_READ, channel);
+                        channel.connection = server.newConnection(channel);
+                        channel.connection.start();
+                    }
+
+                    NioChannel pending;
+                    while ((pending = pendingWrites.poll()) != null) {
+                        pending.flushWrites();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        NioChannel channel = (NioChannel) key.attachment();
+                        if (key.isValid() && key.isWritable()) {
+                            channel.flushWrites();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            channel.read();
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastIdleCheck >= SELECT_TIMEOUT_MS) {
+                        lastIdleCheck = now;
+                        for (SelectionKey key : selector.keys()) {
+                            ((NioChannel) key.attachment()).checkIdle(now);
+                        }
+                    }
+                } catch (Exception e) {
+                    System.err.println("ERROR: Event loop : " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Output side of a connection, frames are queued by any thread and written by the event loop
+    private static class NioChannel implements GrpcConnection.Output {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(GrpcConnection.READ_BUFFER_SIZE);
+        private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+        private final ByteBuffer[] gather = new ByteBuffer[16];
+        private final AtomicBoolean writeRequested = new AtomicBoolean();
+        private SelectionKey key;
+        private GrpcConnection connection;
+        private long lastRead = System.currentTimeMillis();
+        private volatile boolean closing = false;
+        private boolean closed = false;
+
+        NioChannel(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        @Override
+        public synchronized void write(ByteBuffer buffer) {
+            writeQueue.add(buffer);
+        }
+
+        // Flushes requested by any number of streams before the loop gets to run are written together
+        @Override
+        public void flush() {
+            if (!writeRequested.getAndSet(true)) {
+                loop.requestWrite(this);
+            }
+        }
+
+        // Queued frames such as GOAWAY are still written before the socket is closed
+        @Override
+        public void close() {
+            closing = true;
+            writeRequested.set(true);
+            loop.requestWrite(this);
+        }
+
+        void read() {
+            try {
+                int n = channel.read(readBuffer);
+                if (n < 0) {
+                    shutdown();
+                    return;
+                }
+
+                lastRead = System.currentTimeMillis();
+                readBuffer.flip();
+                connection.receive(readBuffer);
+                readBuffer.compact();
+            } catch (IOException e) {
+                System.err.println("ERROR: Handling client : " + e.getMessage());
+                shutdown();
+            }
+        }
+
+        void flushWrites() {
+            if (closed) {
+                return;
+            }
+
+            writeRequested.set(false);
+            try {
+                boolean drained;
+                synchronized (this) {
+                    while (!writeQueue.isEmpty()) {
+                        int count = 0;
+                        for (ByteBuffer buffer : writeQueue) {
+                            gather[count++] = buffer;
+                            if (count == gather.length) {
+                                break;
+                            }
+                        }
+
+                        channel.write(gather, 0, count);
+                        boolean socketFull = gather[count - 1].hasRemaining();
+                        Arrays.fill(gather, 0, count, null);
+
+                        while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining()) {
+                            BufferPool.release(writeQueue.poll());
+                        }
+                        if (socketFull) {
+                            // Wait for OP_WRITE
+                            break;
+                        }
+                    }
+                    drained = writeQueue.isEmpty();
+                }
+
+                if (!drained) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                } else if (closing) {
+                    shutdown();
+                } else {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } catch (IOException e) {
+                System.err.println("ERROR: Writing to client : " + e.getMessage());
+                shutdown();
+            }
+        }
+
+        void checkIdle(long now) {
+            if (now - lastRead < GrpcConnection.IDLE_TIMEOUT_MS) {
+                return;
+            }
+
+            lastRead = now;
+            try {
+                connection.onIdleTimeout();
+            } catch (IOException e) {
+                shutdown();
+            }
+        }
+
+        private void shutdown() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("ERROR: Unable to close connection : " + e.getMessage());
+            }
+            connection.close();
+        }
+    }
+}
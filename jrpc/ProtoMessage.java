@@ -0,0 +1,16 @@
+package jrpc;
+
+// Message that can be sent as a gRPC response, implemented by MessageObject and by the classes
+// CodeGenerator emits
+public interface ProtoMessage {
+    // Must be called before writeTo, the size is kept for the write
+    int getSerializedSize() throws Exception;
+
+    // Returns the offset after the message, the buffer must have getSerializedSize bytes left
+    int writeTo(byte[] buffer, int offset) throws Exception;
+
+    @FunctionalInterface
+    interface Parser<T extends ProtoMessage> {
+        T parseFrom(byte[] buffer, int offset, int length) throws Exception;
+    }
+}
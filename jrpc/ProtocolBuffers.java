@@ -6,6 +6,7 @@ import java.nio.file.Files;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Optional;
 import java.util.List;
 
@@ -13,14 +14,38 @@ public class ProtocolBuffers {
     public ProtocolBuffers(String filePath) throws Exception {
         definitions = new HashMap<>();
         importPaths = new ArrayList<>();
+        plans = new HashMap<>();
 
         parseProtocolBufferFile(filePath);
+        compilePlans();
     }
 
     public Map<String, Definition> getDefinitions() {
         return definitions;
     }
 
+    // Compiled form of a message definition, null when there is no such message
+    public MessagePlan getPlan(String identifier) {
+        return plans.get(identifier);
+    }
+
+    // Replaces the generic encoding loops of every message type with codecs compiled for it, see
+    // CodecCompiler. Needs a JDK at runtime and the jrpc classes readable from the file system,
+    // returns false and keeps the generic loops otherwise.
+    public synchronized boolean compileCodecs() {
+        if (codecsCompiled) {
+            return true;
+        }
+        try {
+            CodecCompiler.compile(new ArrayList<>(plans.values()));
+            codecsCompiled = true;
+            System.err.println("INFO: Compiled codecs for " + plans.size() + " message types");
+        } catch (Exception e) {
+            System.err.println("WARN: Compiling codecs failed, using the generic encoding loops : " + e.getMessage());
+        }
+        return codecsCompiled;
+    }
+
     public enum Syntax {
         PROTO2,
         PROTO3,
@@ -72,6 +97,9 @@ public class ProtocolBuffers {
     public static class ServiceMethodDefinition {
         public String inputIdentifier;
         public String outputIdentifier;
+        // Marked with stream, any number of messages instead of exactly one
+        public boolean clientStreaming;
+        public boolean serverStreaming;
     }
 
     public static class ServiceDefinition implements Definition {
@@ -84,11 +112,301 @@ public class ProtocolBuffers {
         }
     }
 
+    public enum WireType {
+        VARINT(0),
+        FIXED64(1),
+        LENGTH_DELIMITED(2),
+        FIXED32(5),
+        ;
+
+        public final int value;
+
+        WireType(int value) {
+            this.value = value;
+        }
+    }
+
+    // Java representation of a field value, the scalar ones are what the primitive accessors take
+    public enum JavaType {
+        INT,
+        LONG,
+        FLOAT,
+        DOUBLE,
+        BOOLEAN,
+        STRING,
+        BYTES,
+        ENUM,
+        MESSAGE,
+    }
+
+    public enum FieldKind {
+        DOUBLE("double", WireType.FIXED64, JavaType.DOUBLE),
+        FLOAT("float", WireType.FIXED32, JavaType.FLOAT),
+        INT32("int32", WireType.VARINT, JavaType.INT),
+        INT64("int64", WireType.VARINT, JavaType.LONG),
+        UINT32("uint32", WireType.VARINT, JavaType.INT),
+        UINT64("uint64", WireType.VARINT, JavaType.LONG),
+        SINT32("sint32", WireType.VARINT, JavaType.INT),
+        SINT64("sint64", WireType.VARINT, JavaType.LONG),
+        FIXED32("fixed32", WireType.FIXED32, JavaType.INT),
+        FIXED64("fixed64", WireType.FIXED64, JavaType.LONG),
+        SFIXED32("sfixed32", WireType.FIXED32, JavaType.INT),
+        SFIXED64("sfixed64", WireType.FIXED64, JavaType.LONG),
+        BOOL("bool", WireType.VARINT, JavaType.BOOLEAN),
+        STRING("string", WireType.LENGTH_DELIMITED, JavaType.STRING),
+        BYTES("bytes", WireType.LENGTH_DELIMITED, JavaType.BYTES),
+        ENUM(null, WireType.VARINT, JavaType.ENUM),
+        MESSAGE(null, WireType.LENGTH_DELIMITED, JavaType.MESSAGE),
+        ;
+
+        public final String typeName;
+        public final WireType wireType;
+        public final JavaType javaType;
+
+        FieldKind(String typeName, WireType wireType, JavaType javaType) {
+            this.typeName = typeName;
+            this.wireType = wireType;
+            this.javaType = javaType;
+        }
+
+        static FieldKind forScalarType(String typeName) {
+            for (FieldKind kind : values()) {
+                if (typeName.equals(kind.typeName)) {
+                    return kind;
+                }
+            }
+            return null;
+        }
+    }
+
+    // A message field with its type resolved, so encoding and decoding never look at names
+    public static class FieldPlan {
+        public final int number;
+        public final String identifier;
+        // Index into a message's value arrays, fields are numbered in field number order
+        public final int slot;
+        public final FieldKind kind;
+        public final MessageFieldModifier modifier;
+        // Numeric and bool fields, kept unboxed by MessageObject in a slot when singular
+        // and in a primitive array when repeated
+        public final boolean scalar;
+        public final boolean primitive;
+        // Repeated scalars and enums, written as one length delimited record as proto3 does by
+        // default. Both packed and unpacked records are read.
+        public final boolean packed;
+        public final String oneof;
+        // Tag varint for the field number and the kind's wire type
+        public final byte[] tag;
+        // Tag of the packed record, null for fields that are not packed
+        public final byte[] packedTag;
+        // Message type for MESSAGE fields, the entry type for maps
+        public final MessagePlan message;
+        // Enum identifier and values both ways for ENUM fields
+        public final String enumIdentifier;
+        public final Map<String, Integer> enumValues;
+        public final Map<Integer, String> enumNames;
+
+        FieldPlan(int number, int slot, MessageField field, String oneof, FieldKind kind, MessagePlan message, EnumDefinition enumDefinition) {
+            this.number = number;
+            this.identifier = field.identifier;
+            this.slot = slot;
+            this.kind = kind;
+            this.modifier = field.modifier;
+            this.scalar = kind != FieldKind.STRING && kind != FieldKind.BYTES && kind != FieldKind.ENUM && kind != FieldKind.MESSAGE;
+            this.primitive = scalar && field.modifier != MessageFieldModifier.REPEATED && field.modifier != MessageFieldModifier.MAP;
+            this.packed = (scalar || kind == FieldKind.ENUM) && field.modifier == MessageFieldModifier.REPEATED;
+            this.oneof = oneof;
+            this.tag = encodeTag(number, kind.wireType);
+            this.packedTag = packed ? encodeTag(number, WireType.LENGTH_DELIMITED) : null;
+            this.message = message;
+
+            if (enumDefinition != null) {
+                this.enumIdentifier = enumDefinition.identifier;
+                this.enumValues = Map.copyOf(enumDefinition.values);
+                Map<Integer, String> names = new HashMap<>();
+                for (Map.Entry<String, Integer> entry : enumDefinition.values.entrySet()) {
+                    names.putIfAbsent(entry.getValue(), entry.getKey());
+                }
+                this.enumNames = Map.copyOf(names);
+            } else {
+                this.enumIdentifier = null;
+                this.enumValues = null;
+                this.enumNames = null;
+            }
+        }
+
+        private static byte[] encodeTag(int number, WireType wireType) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int value = (number << 3) | wireType.value;
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+            return out.toByteArray();
+        }
+    }
+
+    // Compiled once per message definition when the file is loaded. Fields of message
+    // type point straight at the plan of that message, recursive types included.
+    public static class MessagePlan {
+        // Field numbers up to this get a direct lookup slot
+        private static final int MAX_DENSE_FIELD_NUMBER = 1024;
+
+        public final String identifier;
+        public final MessageDefinition definition;
+        // Schema the plan was compiled from, to create messages of the types it refers to
+        final ProtocolBuffers pb;
+        // Specialized encoder and decoder, null until ProtocolBuffers.compileCodecs
+        volatile MessageCodec codec;
+        private FieldPlan[] fields;
+        private FieldPlan[] fieldsByNumber;
+        private Map<String, FieldPlan> fieldsByName;
+        // Slots of every member of the field's oneof, null for fields outside a oneof
+        private int[][] oneofSlots;
+        private boolean hasPrimitives;
+
+        MessagePlan(ProtocolBuffers pb, MessageDefinition definition) {
+            this.identifier = definition.identifier;
+            this.definition = definition;
+            this.pb = pb;
+        }
+
+        // Sorted by field number, the index of a field is its slot
+        public FieldPlan[] getFields() {
+            return fields;
+        }
+
+        public FieldPlan getField(String identifier) {
+            return fieldsByName.get(identifier);
+        }
+
+        public int[] getOneofSlots(FieldPlan field) {
+            return oneofSlots[field.slot];
+        }
+
+        public boolean hasPrimitives() {
+            return hasPrimitives;
+        }
+
+        public FieldPlan getField(int number) {
+            if (number >= 0 && number < fieldsByNumber.length) {
+                return fieldsByNumber[number];
+            }
+            if (number < MAX_DENSE_FIELD_NUMBER) {
+                return null;
+            }
+
+            int low = 0;
+            int high = fields.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (fields[middle].number < number) {
+                    low = middle + 1;
+                } else if (fields[middle].number > number) {
+                    high = middle - 1;
+                } else {
+                    return fields[middle];
+                }
+            }
+            return null;
+        }
+
+        // Fields must be sorted by number with slots matching their index
+        void setFields(FieldPlan[] fields) {
+            int maxDense = 0;
+            for (FieldPlan field : fields) {
+                if (field.number <= MAX_DENSE_FIELD_NUMBER) {
+                    maxDense = Math.max(maxDense, field.number);
+                }
+            }
+
+            this.fields = fields;
+            this.fieldsByNumber = new FieldPlan[maxDense + 1];
+            this.fieldsByName = new HashMap<>();
+            this.oneofSlots = new int[fields.length][];
+            for (FieldPlan field : fields) {
+                if (field.number <= MAX_DENSE_FIELD_NUMBER) {
+                    fieldsByNumber[field.number] = field;
+                }
+                fieldsByName.put(field.identifier, field);
+                hasPrimitives |= field.primitive;
+
+                if (field.oneof != null) {
+                    oneofSlots[field.slot] = Arrays.stream(fields)
+                            .filter(member -> field.oneof.equals(member.oneof))
+                            .mapToInt(member -> member.slot)
+                            .toArray();
+                }
+            }
+        }
+    }
+
     // Private methods
     
     private Syntax syntax;
     private final List<String> importPaths;
     private final Map<String, Definition> definitions;
+    private final Map<String, MessagePlan> plans;
+    private boolean codecsCompiled;
+
+    private void compilePlans() throws Exception {
+        // Every plan exists before fields are resolved so message types can refer to each other
+        for (Definition definition : definitions.values()) {
+            if (definition instanceof MessageDefinition) {
+                MessageDefinition messageDefinition = (MessageDefinition) definition;
+                plans.put(messageDefinition.identifier, new MessagePlan(this, messageDefinition));
+            }
+        }
+
+        for (MessagePlan plan : plans.values()) {
+            List<Integer> numbers = new ArrayList<>(plan.definition.fields.keySet());
+            numbers.sort(null);
+
+            List<FieldPlan> fields = new ArrayList<>();
+            for (Integer number : numbers) {
+                MessageField field = plan.definition.fields.get(number);
+                String oneof = plan.definition.oneofs.get(number);
+                int slot = fields.size();
+
+                FieldKind kind = FieldKind.forScalarType(field.type);
+                if (kind != null) {
+                    fields.add(new FieldPlan(number, slot, field, oneof, kind, null, null));
+                    continue;
+                }
+
+                Definition type = resolveType(plan.identifier, field.type);
+                if (type instanceof MessageDefinition) {
+                    MessagePlan message = plans.get(((MessageDefinition) type).identifier);
+                    fields.add(new FieldPlan(number, slot, field, oneof, FieldKind.MESSAGE, message, null));
+                } else if (type instanceof EnumDefinition) {
+                    fields.add(new FieldPlan(number, slot, field, oneof, FieldKind.ENUM, null, (EnumDefinition) type));
+                } else {
+                    throw new Exception("Unknown type " + field.type + " for field " + plan.identifier + "." + field.identifier);
+                }
+            }
+            plan.setFields(fields.toArray(new FieldPlan[0]));
+        }
+    }
+
+    // Scoped lookup, the innermost enclosing message first and the top level last
+    private Definition resolveType(String scope, String type) {
+        if (type.startsWith(".")) {
+            return definitions.get(type.substring(1));
+        }
+
+        String prefix = scope;
+        while (prefix != null) {
+            Definition definition = definitions.get(prefix + "." + type);
+            if (definition != null) {
+                return definition;
+            }
+
+            int dot = prefix.lastIndexOf('.');
+            prefix = (dot < 0) ? null : prefix.substring(0, dot);
+        }
+        return definitions.get(type);
+    }
 
     private String readEntireFile(String filePath) throws Exception {
         File file = new File(filePath);
@@ -321,6 +639,11 @@ public class ProtocolBuffers {
             return Optional.empty();
         }
 
+        // Type of the token after the next one
+        public boolean expectSecond(TokenType type) {
+            return index + 1 < tokens.size() && tokens.get(index + 1).type == type;
+        }
+
         public void consume() {
             if (index < tokens.size()) {
                 index++;
@@ -398,7 +721,9 @@ public class ProtocolBuffers {
                 || keyword == Keyword.SINT32
                 || keyword == Keyword.SINT64
                 || keyword == Keyword.FIXED32
-                || keyword == Keyword.FIXED64;
+                || keyword == Keyword.FIXED64
+                || keyword == Keyword.SFIXED32
+                || keyword == Keyword.SFIXED64;
     }
 
     private void parseOneOf(Parser parser, MessageDefinition messageDefinition) throws Exception {
@@ -746,6 +1071,7 @@ public class ProtocolBuffers {
             }
             parser.consume();
 
+            method.clientStreaming = parseStream(parser);
             if (!parser.expect(TokenType.IDENTIFIER)) {
                 throw new Exception("Expected identifier");
             }
@@ -770,6 +1096,7 @@ public class ProtocolBuffers {
             }
             parser.consume();
 
+            method.serverStreaming = parseStream(parser);
             if (!parser.expect(TokenType.IDENTIFIER)) {
                 throw new Exception("Expected identifier");
             }
@@ -793,6 +1120,15 @@ public class ProtocolBuffers {
         definitions.put(identifier, serviceDefinition);
     }
 
+    // stream is not reserved, it is only the marker when a type name follows it
+    private boolean parseStream(Parser parser) {
+        if (parser.expect(TokenType.IDENTIFIER) && parser.peek().get().value.equals("stream") && parser.expectSecond(TokenType.IDENTIFIER)) {
+            parser.consume();
+            return true;
+        }
+        return false;
+    }
+
     private void resolveImports(ArrayList<Token> tokens) throws Exception {
         Parser parser = new Parser(tokens);
         while (parser.peek().isPresent()) {
@@ -0,0 +1,90 @@
+package jrpc;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+// Generates classes for names.proto, whose field names are also names used inside generated code,
+// and checks they round trip with MessageObject. Needs a JDK to compile the generated sources.
+public class TestCodeGenerator {
+    public static void main(String[] args) throws Exception {
+        ProtocolBuffers pb = new ProtocolBuffers("names.proto");
+        File directory = Files.createTempDirectory("jrpc-generated").toFile();
+        List<File> files = new CodeGenerator(pb, "names.proto", "names").generate(directory);
+
+        List<String> arguments = new ArrayList<>(List.of("-classpath", System.getProperty("java.class.path"), "-d", directory.getPath()));
+        for (File file : files) {
+            arguments.add(file.getPath());
+        }
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler.run(null, null, null, arguments.toArray(new String[0])) != 0) {
+            throw new Exception("Generated code does not compile");
+        }
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() }, TestCodeGenerator.class.getClassLoader())) {
+            Class<?> item = loader.loadClass("names.Item");
+
+            Map<String, Object> values = new HashMap<>();
+            values.put("setSize", 300L);
+            values.put("setOffset", 1000L);
+            values.put("setBuffer", "buffer");
+            values.put("setElement", new int[] { 1, 2, 3 });
+            values.put("setPackedSize", new long[] { 1L << 40, 5 });
+            values.put("setEntry", Map.of("a", 1));
+            values.put("setKey", Map.of(2, "b"));
+            values.put("setValue", 8);
+            values.put("setLimit", 10);
+            values.put("setTag", 11);
+            values.put("setIn", 12);
+            values.put("setSerializedSize", 13);
+            values.put("setCount", 0);
+            values.put("setHasCount", true);
+            values.put("setLength", 17);
+            values.put("setClass", new String[] { "c" });
+            values.put("setEntrySize", 19);
+            values.put("setBuilt", 20);
+            Object message = build(item, values);
+
+            byte[] bytes = (byte[]) item.getMethod("toByteArray").invoke(message);
+            MessageObject decoded = new MessageObject(pb, "Item", bytes, 0, bytes.length, false);
+            System.out.println("Dynamic: size " + decoded.getField("size") + " offset " + decoded.getField("offset")
+                    + " serialized_size " + decoded.getField("serialized_size") + " count " + decoded.getField("count")
+                    + " length " + decoded.getField("length"));
+            System.out.println("Dynamic reencode equal: " + Arrays.equals(decoded.toByteArray(), bytes));
+
+            Object parsed = item.getMethod("parseFrom", byte[].class).invoke(null, (Object) bytes);
+            System.out.println("Generated: size " + get(parsed, "getSize") + " offset " + get(parsed, "getOffset")
+                    + " serialized_size " + get(parsed, "getSerializedSize_") + " has count " + get(parsed, "hasCount")
+                    + " kind " + get(parsed, "getKindCase") + " class " + Arrays.toString((String[]) get(parsed, "getClass_"))
+                    + " entry " + get(parsed, "getEntry") + " key " + get(parsed, "getKey")
+                    + " packed " + Arrays.toString((long[]) get(parsed, "getPackedSize")));
+            System.out.println("Generated reencode equal: " + Arrays.equals((byte[]) item.getMethod("toByteArray").invoke(parsed), bytes));
+        }
+    }
+
+    private static Object build(Class<?> type, Map<String, Object> values) throws Exception {
+        Object builder = type.getMethod("newBuilder").invoke(null);
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            for (Method method : builder.getClass().getMethods()) {
+                if (method.getName().equals(value.getKey())) {
+                    method.invoke(builder, value.getValue());
+                }
+            }
+        }
+        return builder.getClass().getMethod("build").invoke(builder);
+    }
+
+    private static Object get(Object message, String getter) throws Exception {
+        return message.getClass().getMethod(getter).invoke(message);
+    }
+}
@@ -10,7 +10,7 @@ public class TestGrpc {
         Map<String, GrpcHandler> handlers = new HashMap<>();
         handlers.put("/UserService/GetUser", (request) -> {
             System.out.println("Received: " + request);
-            MessageObject response = new MessageObject(pb, "UserResponse");
+            MessageObject response = request.newMessage("UserResponse");
            
             response.setField("id", request.getField("id"));
             response.setField("name", "John Doe");
@@ -23,6 +23,13 @@ public class TestGrpc {
             return response;
         });
 
-        new GrpcServer(pb, handlers).start();
+        GrpcServer server = new GrpcServer(pb, handlers);
+        if (args.length > 0) {
+            server.setTransport(GrpcServer.Transport.valueOf(args[0].toUpperCase()));
+        }
+        if (args.length > 1) {
+            server.setExecutionMode(GrpcServer.ExecutionMode.valueOf(args[1].toUpperCase()));
+        }
+        server.start();
     }
 }
@@ -0,0 +1,512 @@
+package jrpc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Starts a server on test.proto and talks HTTP/2 to it over plain sockets. Takes the transport and
+// execution mode like TestGrpc.
+public class TestGrpcConnection {
+    private static final int PORT = 8080;
+    private static final int TIMEOUT_MS = 5000;
+    // Users of 16 KB each in the GetUsers response, 3 MB in all
+    private static final int LIST_USERS = 192;
+    private static final int EVENT_LOOPS = 3;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1 && args[1].equalsIgnoreCase("virtual") && Runtime.version().feature() < 21) {
+            System.out.println("Skipped: virtual thread execution mode requires Java 21+");
+            return;
+        }
+
+        ProtocolBuffers pb = new ProtocolBuffers("test.proto");
+        GrpcServer server = newServer(pb, args);
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (Exception e) {
+                System.err.println("ERROR: Server failed : " + e.getMessage());
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        awaitServer();
+
+        // Server threads keep running, so the test exits on its own however it ends
+        try {
+            run(pb);
+            checkEventLoops(server, args);
+        } catch (Exception e) {
+            System.out.println("Failed: " + e);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void run(ProtocolBuffers pb) throws Exception {
+        // More open streaming calls than the handler pool has threads, none of them sending anything
+        int streamingCalls = 20;
+        Client streaming = new Client(pb);
+        List<Integer> sums = new ArrayList<>();
+        for (int i = 0; i < streamingCalls; i++) {
+            sums.add(streaming.call("/StreamService/Sum"));
+        }
+        streaming.ping();
+
+        Client unary = new Client(pb);
+        int getUser = unary.call("/UserService/GetUser");
+        unary.send(getUser, request(pb, 7), true);
+        Response user = unary.await(getUser);
+        System.out.println("Unary call during " + streamingCalls + " open streaming calls: "
+                + ("0".equals(user.status) && user.messages.get(0).getField("id").equals(7)));
+
+        boolean summed = true;
+        for (int i = 0; i < streamingCalls; i++) {
+            streaming.send(sums.get(i), request(pb, i), false);
+            streaming.send(sums.get(i), request(pb, i), true);
+        }
+        for (int i = 0; i < streamingCalls; i++) {
+            Response sum = streaming.await(sums.get(i));
+            summed &= "0".equals(sum.status) && sum.messages.get(0).getField("id").equals(2 * i);
+        }
+        System.out.println("Streaming calls complete: " + summed);
+
+        // Requests reach handlers whole however DATA frames cut them
+        byte[] framed = framed(request(pb, 9));
+        getUser = unary.call("/UserService/GetUser");
+        for (int i = 0; i < framed.length; i++) {
+            unary.sendData(getUser, new byte[] { framed[i] }, i == framed.length - 1);
+        }
+        user = unary.await(getUser);
+        System.out.println("Request in " + framed.length + " frames: "
+                + ("0".equals(user.status) && user.messages.get(0).getField("id").equals(9)));
+
+        int sum = unary.call("/StreamService/Sum");
+        unary.sendData(sum, concat(framed(request(pb, 4)), framed(request(pb, 5)), framed(request(pb, 6))), true);
+        Response sumResponse = unary.await(sum);
+        System.out.println("Requests in one frame: "
+                + ("0".equals(sumResponse.status) && sumResponse.messages.get(0).getField("id").equals(15)));
+
+        int partial = unary.call("/UserService/GetUser");
+        unary.sendData(partial, Arrays.copyOf(framed, framed.length - 1), true);
+        System.out.println("Partial request at end of stream: " + unary.await(partial).status.equals("13"));
+
+        int tooLarge = unary.call("/UserService/GetUser");
+        unary.sendData(tooLarge, new byte[] { 0, 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF }, false);
+        System.out.println("Request over the size limit: " + unary.await(tooLarge).status.equals("8"));
+
+        // Error text stays out of the dynamic table, so it never evicts the fields every response shares
+        boolean errorsUnindexed = true;
+        for (String[] field : unary.decoder.getDynamicTable()) {
+            errorsUnindexed &= !field[0].equals("grpc-message") || field[1].equals("OK");
+        }
+        System.out.println("Error messages not indexed: " + errorsUnindexed);
+        System.out.println("Error message percent-encoded: "
+                + GrpcConnection.percentEncode("Gr\u00F6\u00DFe 100% \uD83D\uDE00").equals("Gr%C3%B6%C3%9Fe 100%25 %F0%9F%98%80")
+                + " " + GrpcConnection.percentEncode("Method not found").equals("Method not found"));
+
+        // A response larger than the client's windows stops at them and resumes with WINDOW_UPDATE
+        Client window = new Client(pb);
+        window.windowUpdates = false;
+        int users = window.call("/UserService/GetUsers");
+        window.send(users, new MessageObject(pb, "Empty"), true);
+        window.readUntilIdle(500);
+        int held = window.responses.get(users).data.size();
+        window.windowUpdates = true;
+        window.windowUpdate(0, 1 << 24);
+        window.windowUpdate(users, 1 << 24);
+        Response list = window.await(users);
+        System.out.println("Response held at the client window: " + (held > 0 && held <= HTTP2.DEFAULT_INITIAL_WINDOW_SIZE)
+                + " (" + held + " bytes), rest after WINDOW_UPDATE: "
+                + ("0".equals(list.status) && ((Object[]) list.messages.get(0).getField("users")).length == LIST_USERS)
+                + " (" + list.data.size() + " bytes), frames within the max frame size: " + (window.maxDataFrame <= HTTP2.DEFAULT_MAX_FRAME_SIZE));
+        window.close();
+
+        // An upload larger than the server's windows goes through as the server returns them,
+        // with BDP PINGs no more often than the interval allows
+        Client upload = new Client(pb);
+        long start = System.currentTimeMillis();
+        int echo = upload.call("/StreamService/Echo");
+        MessageObject large = new MessageObject(pb, "UserResponse");
+        large.setField("id", 1);
+        large.setField("name", "y".repeat(2 * 1024 * 1024));
+        upload.send(echo, large, true);
+        Response echoed = upload.await(echo);
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println("Upload of 2 MB: " + ("0".equals(echoed.status)
+                && ((String) echoed.messages.get(0).getField("name")).length() == 2 * 1024 * 1024)
+                + ", WINDOW_UPDATE frames: " + (upload.windowUpdatesReceived > 0));
+        // Half the interval leaves room for PINGs that reach us later than they were sent
+        System.out.println("BDP PINGs within the rate limit: " + (upload.minPingGap >= GrpcConnection.BDP_PING_INTERVAL_MS / 2)
+                + " (" + upload.pings + " in " + elapsed + " ms)");
+        upload.close();
+
+        // Server streaming calls to a client that reads nothing, their handlers block on the send
+        // windows and the socket with more of them than there are carrier threads
+        int blockedCalls = 64;
+        Client slow = new Client(pb);
+        slow.windowUpdates = false;
+        for (int i = 0; i < blockedCalls; i++) {
+            slow.send(slow.call("/StreamService/ListUsers"), request(pb, 100), true);
+        }
+        Thread.sleep(200);
+        getUser = unary.call("/UserService/GetUser");
+        unary.send(getUser, request(pb, 8), true);
+        user = unary.await(getUser);
+        System.out.println("Unary call during " + blockedCalls + " blocked streaming writers: "
+                + ("0".equals(user.status) && user.messages.get(0).getField("id").equals(8)));
+        slow.close();
+
+        unary.close();
+        streaming.close();
+    }
+
+    // The NIO transport runs as many selector threads as set, and no thread per connection
+    private static void checkEventLoops(GrpcServer server, String[] args) {
+        long loops = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("jrpc-event-loop-"))
+                .count();
+        boolean nio = args.length > 0 && args[0].equalsIgnoreCase("nio");
+        boolean rejected = false;
+        try {
+            server.setEventLoopCount(0);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        System.out.println("Event loops: " + (loops == (nio ? EVENT_LOOPS : 0)) + ", zero rejected: " + rejected);
+    }
+
+    private static GrpcServer newServer(ProtocolBuffers pb, String[] args) throws Exception {
+        Map<String, GrpcHandler> handlers = new HashMap<>();
+        handlers.put("/UserService/GetUser", (request) -> {
+            MessageObject response = request.newMessage("UserResponse");
+            response.setField("id", request.getField("id"));
+            response.setField("name", "John Doe");
+            return response;
+        });
+        handlers.put("/UserService/GetUsers", (request) -> {
+            Object[] users = new Object[LIST_USERS];
+            for (int i = 0; i < users.length; i++) {
+                MessageObject user = request.newMessage("UserResponse");
+                user.setField("id", i);
+                user.setField("name", "z".repeat(16 * 1024));
+                users[i] = user;
+            }
+            MessageObject response = request.newMessage("UserListResponse");
+            response.setField("users", users);
+            return response;
+        });
+
+        GrpcServer server = new GrpcServer(pb, handlers);
+        server.setEventLoopCount(EVENT_LOOPS);
+        if (args.length > 0) {
+            server.setTransport(GrpcServer.Transport.valueOf(args[0].toUpperCase()));
+        }
+        if (args.length > 1) {
+            server.setExecutionMode(GrpcServer.ExecutionMode.valueOf(args[1].toUpperCase()));
+        }
+        server.setAdaptiveWindow(true);
+
+        // As many responses as the request id, each large enough to use up windows quickly
+        String name = "x".repeat(16 * 1024);
+        server.addStreamingHandler("/StreamService/ListUsers", (requests, responses) -> {
+            int count = (Integer) requests.read().getField("id");
+            for (int i = 0; i < count; i++) {
+                MessageObject response = new MessageObject(pb, "UserResponse");
+                response.setField("id", i);
+                response.setField("name", name);
+                responses.write(response);
+            }
+        });
+        server.addStreamingHandler("/StreamService/Echo", (requests, responses) -> {
+            MessageObject request;
+            while ((request = requests.read()) != null) {
+                responses.write(request);
+            }
+        });
+        server.addStreamingHandler("/StreamService/Sum", (requests, responses) -> {
+            int sum = 0;
+            MessageObject request;
+            while ((request = requests.read()) != null) {
+                sum += (Integer) request.getField("id");
+            }
+            MessageObject response = new MessageObject(pb, "UserResponse");
+            response.setField("id", sum);
+            response.setField("name", "Sum");
+            responses.write(response);
+        });
+        return server;
+    }
+
+    private static MessageObject request(ProtocolBuffers pb, int id) throws Exception {
+        MessageObject request = new MessageObject(pb, "UserRequest");
+        request.setField("id", id);
+        return request;
+    }
+
+    private static byte[] framed(MessageObject message) throws Exception {
+        byte[] bytes = message.toByteArray();
+        return ByteBuffer.allocate(5 + bytes.length).put((byte) 0).putInt(bytes.length).put(bytes).array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static void awaitServer() throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            try {
+                new Socket("localhost", PORT).close();
+                return;
+            } catch (Exception e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new Exception("Server did not start");
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static class Response {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final List<MessageObject> messages = new ArrayList<>();
+        String status;
+    }
+
+    // Client end of one connection. Frames of other streams read while waiting for one are kept
+    // on their stream, DATA is acknowledged with WINDOW_UPDATE as it is read.
+    private static class Client {
+        private final ProtocolBuffers pb;
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+        private final HPack encoder = new HPack();
+        private final HPack decoder = new HPack();
+        private final Map<Integer, Response> responses = new HashMap<>();
+        private final Map<Integer, String> responseTypes = new HashMap<>();
+        private int nextStreamId = 1;
+        private boolean pingAcked;
+        // Off for a client that lets the server's send windows run out
+        boolean windowUpdates = true;
+        // Send windows, the server's SETTINGS change the initial window of every stream
+        private int sendWindow = HTTP2.DEFAULT_INITIAL_WINDOW_SIZE;
+        private int initialWindow = HTTP2.DEFAULT_INITIAL_WINDOW_SIZE;
+        private final Map<Integer, Integer> streamWindows = new HashMap<>();
+        int maxDataFrame;
+        int windowUpdatesReceived;
+        int pings;
+        long minPingGap = Long.MAX_VALUE;
+        private long lastPingAt;
+
+        Client(ProtocolBuffers pb) throws Exception {
+            this.pb = pb;
+            socket = new Socket("localhost", PORT);
+            socket.setSoTimeout(TIMEOUT_MS);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new BufferedInputStream(socket.getInputStream());
+            out.write(HTTP2.EXPECTED_PREFACE);
+            writeFrame(HTTP2.FRAME_TYPE_SETTINGS, 0, 0, new byte[0]);
+        }
+
+        int call(String path) throws Exception {
+            int streamId = nextStreamId;
+            nextStreamId += 2;
+
+            List<String[]> headers = new ArrayList<>();
+            headers.add(new String[] { ":method", "POST" });
+            headers.add(new String[] { ":scheme", "http" });
+            headers.add(new String[] { ":path", path });
+            headers.add(new String[] { ":authority", "localhost" });
+            headers.add(new String[] { "content-type", "application/grpc" });
+            headers.add(new String[] { "te", "trailers" });
+            writeFrame(HTTP2.FRAME_TYPE_HEADERS, HTTP2.FLAG_END_HEADERS, streamId, encoder.encode(headers));
+
+            String service = path.substring(1, path.lastIndexOf('/'));
+            String method = path.substring(path.lastIndexOf('/') + 1);
+            ProtocolBuffers.ServiceDefinition definition = (ProtocolBuffers.ServiceDefinition) pb.getDefinitions().get(service);
+            responseTypes.put(streamId, definition.methods.get(method).outputIdentifier);
+            responses.put(streamId, new Response());
+            streamWindows.put(streamId, initialWindow);
+            return streamId;
+        }
+
+        void send(int streamId, MessageObject message, boolean endStream) throws Exception {
+            sendData(streamId, framed(message), endStream);
+        }
+
+        // Split into frames as the server's windows allow, reading its frames while they are closed
+        void sendData(int streamId, byte[] data, boolean endStream) throws Exception {
+            int offset = 0;
+            do {
+                int length = Math.min(Math.min(data.length - offset, HTTP2.DEFAULT_MAX_FRAME_SIZE), Math.min(sendWindow, streamWindows.get(streamId)));
+                if (length <= 0 && data.length > 0) {
+                    flush();
+                    readFrame();
+                    continue;
+                }
+                sendWindow -= length;
+                streamWindows.merge(streamId, -length, Integer::sum);
+                offset += length;
+                int flag = (endStream && offset == data.length) ? HTTP2.FLAG_END_STREAM : 0;
+                writeFrame(HTTP2.FRAME_TYPE_DATA, flag, streamId, Arrays.copyOfRange(data, offset - length, offset));
+            } while (offset < data.length);
+            flush();
+        }
+
+        void windowUpdate(int streamId, int increment) throws Exception {
+            writeFrame(HTTP2.FRAME_TYPE_WINDOW_UPDATE, 0, streamId, Utils.unpack(increment, 4));
+            flush();
+        }
+
+        // Reads whatever the server sends until it has been quiet for the given time
+        void readUntilIdle(int millis) throws Exception {
+            socket.setSoTimeout(millis);
+            try {
+                while (true) {
+                    readFrame();
+                }
+            } catch (SocketTimeoutException e) {
+                // Quiet
+            } finally {
+                socket.setSoTimeout(TIMEOUT_MS);
+            }
+        }
+
+        // Reads until the trailers of the stream arrive
+        Response await(int streamId) throws Exception {
+            Response response = responses.get(streamId);
+            while (response.status == null) {
+                readFrame();
+            }
+            return response;
+        }
+
+        // Once the server answers, it has handled every frame sent before
+        void ping() throws Exception {
+            pingAcked = false;
+            writeFrame(HTTP2.FRAME_TYPE_PING, 0, 0, new byte[8]);
+            flush();
+            while (!pingAcked) {
+                readFrame();
+            }
+        }
+
+        void flush() throws Exception {
+            out.flush();
+        }
+
+        void close() throws Exception {
+            socket.close();
+        }
+
+        private void readFrame() throws Exception {
+            byte[] header = in.readNBytes(HTTP2.FRAME_HEADER_LENGTH);
+            if (header.length < HTTP2.FRAME_HEADER_LENGTH) {
+                throw new EOFException("Connection closed by the server");
+            }
+            int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+            int type = header[3] & 0xff;
+            int flag = header[4] & 0xff;
+            int streamId = ByteBuffer.wrap(header, 5, 4).getInt() & 0x7FFFFFFF;
+            byte[] payload = in.readNBytes(length);
+
+            Response response = responses.get(streamId);
+            switch (type) {
+                case HTTP2.FRAME_TYPE_DATA:
+                    maxDataFrame = Math.max(maxDataFrame, length);
+                    response.data.write(payload);
+                    if (length > 0 && windowUpdates) {
+                        writeFrame(HTTP2.FRAME_TYPE_WINDOW_UPDATE, 0, 0, Utils.unpack(length, 4));
+                        writeFrame(HTTP2.FRAME_TYPE_WINDOW_UPDATE, 0, streamId, Utils.unpack(length, 4));
+                        flush();
+                    }
+                    break;
+                case HTTP2.FRAME_TYPE_HEADERS:
+                    for (String[] field : decoder.decode(payload)) {
+                        if (field[0].equals("grpc-status")) {
+                            response.status = field[1];
+                        }
+                    }
+                    if (response.status != null) {
+                        parseMessages(streamId, response);
+                    }
+                    break;
+                case HTTP2.FRAME_TYPE_SETTINGS:
+                    for (int i = 0; i + 6 <= length; i += 6) {
+                        ByteBuffer setting = ByteBuffer.wrap(payload, i, 6);
+                        if (setting.getShort() == HTTP2.SETTINGS_INITIAL_WINDOW_SIZE) {
+                            int value = setting.getInt();
+                            int delta = value - initialWindow;
+                            initialWindow = value;
+                            streamWindows.replaceAll((id, window) -> window + delta);
+                        }
+                    }
+                    if ((flag & HTTP2.FLAG_ACK) == 0) {
+                        writeFrame(HTTP2.FRAME_TYPE_SETTINGS, HTTP2.FLAG_ACK, 0, new byte[0]);
+                        flush();
+                    }
+                    break;
+                case HTTP2.FRAME_TYPE_PING:
+                    if ((flag & HTTP2.FLAG_ACK) == 0) {
+                        long now = System.currentTimeMillis();
+                        if (pings++ > 0) {
+                            minPingGap = Math.min(minPingGap, now - lastPingAt);
+                        }
+                        lastPingAt = now;
+                        writeFrame(HTTP2.FRAME_TYPE_PING, HTTP2.FLAG_ACK, 0, payload);
+                        flush();
+                    } else {
+                        pingAcked = true;
+                    }
+                    break;
+                case HTTP2.FRAME_TYPE_WINDOW_UPDATE:
+                    windowUpdatesReceived++;
+                    int increment = ByteBuffer.wrap(payload).getInt() & 0x7FFFFFFF;
+                    if (streamId == 0) {
+                        sendWindow += increment;
+                    } else {
+                        streamWindows.merge(streamId, increment, Integer::sum);
+                    }
+                    break;
+                case HTTP2.FRAME_TYPE_GOAWAY:
+                    throw new Exception("GOAWAY from the server");
+                default:
+                    break;
+            }
+        }
+
+        private void parseMessages(int streamId, Response response) throws Exception {
+            byte[] data = response.data.toByteArray();
+            int offset = 0;
+            while (offset < data.length) {
+                int length = ByteBuffer.wrap(data, offset + 1, 4).getInt();
+                response.messages.add(new MessageObject(pb, responseTypes.get(streamId), data, offset + 5, length));
+                offset += 5 + length;
+            }
+        }
+
+        private void writeFrame(int type, int flag, int streamId, byte[] payload) throws Exception {
+            out.write(Utils.unpack(payload.length, 3));
+            out.write(type);
+            out.write(flag);
+            out.write(Utils.unpack(streamId, 4));
+            out.write(payload);
+        }
+    }
+}
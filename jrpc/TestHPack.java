@@ -1,6 +1,8 @@
 package jrpc;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 
 public class TestHPack { 
     public static void main(String[] args) throws Exception {
@@ -26,6 +28,156 @@ public class TestHPack {
         for (String[] pair : decodedHeaders) {
             System.out.println(pair[0] + ": " + pair[1]);
         }
+
+        // RFC 7541 Appendix C.3, requests without Huffman coding
+        HPack decoder = new HPack();
+        String[][] request1 = {{":method", "GET"}, {":scheme", "http"}, {":path", "/"}, {":authority", "www.example.com"}};
+        String[][] request2 = {{":method", "GET"}, {":scheme", "http"}, {":path", "/"}, {":authority", "www.example.com"}, {"cache-control", "no-cache"}};
+        String[][] request3 = {{":method", "GET"}, {":scheme", "https"}, {":path", "/index.html"}, {":authority", "www.example.com"}, {"custom-key", "custom-value"}};
+        String[][] table1 = {{":authority", "www.example.com"}};
+        String[][] table2 = {{"cache-control", "no-cache"}, {":authority", "www.example.com"}};
+        String[][] table3 = {{"custom-key", "custom-value"}, {"cache-control", "no-cache"}, {":authority", "www.example.com"}};
+        checkDecode("C.3.1", decoder, "828684410f7777772e6578616d706c652e636f6d", request1, table1, 57);
+        checkDecode("C.3.2", decoder, "828684be58086e6f2d6361636865", request2, table2, 110);
+        checkDecode("C.3.3", decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565", request3, table3, 164);
+
+        // C.4, the same requests with Huffman coding, which is also what the encoder produces
+        decoder = new HPack();
+        HPack encoder = new HPack();
+        checkDecode("C.4.1", decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff", request1, table1, 57);
+        checkEncode("C.4.1", encoder, request1, "828684418cf1e3c2e5f23a6ba0ab90f4ff");
+        checkDecode("C.4.2", decoder, "828684be5886a8eb10649cbf", request2, table2, 110);
+        checkEncode("C.4.2", encoder, request2, "828684be5886a8eb10649cbf");
+        checkDecode("C.4.3", decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf", request3, table3, 164);
+        checkEncode("C.4.3", encoder, request3, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf");
+
+        // C.5, responses evicting entries from a 256 octet table, set by a size update
+        String date1 = "Mon, 21 Oct 2013 20:13:21 GMT";
+        String date2 = "Mon, 21 Oct 2013 20:13:22 GMT";
+        String location = "https://www.example.com";
+        String cookie = "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1";
+        String[][] response1 = {{":status", "302"}, {"cache-control", "private"}, {"date", date1}, {"location", location}};
+        String[][] response2 = {{":status", "307"}, {"cache-control", "private"}, {"date", date1}, {"location", location}};
+        String[][] response3 = {{":status", "200"}, {"cache-control", "private"}, {"date", date2}, {"location", location},
+                {"content-encoding", "gzip"}, {"set-cookie", cookie}};
+        String[][] responseTable1 = {{"location", location}, {"date", date1}, {"cache-control", "private"}, {":status", "302"}};
+        String[][] responseTable2 = {{":status", "307"}, {"location", location}, {"date", date1}, {"cache-control", "private"}};
+        String[][] responseTable3 = {{"set-cookie", cookie}, {"content-encoding", "gzip"}, {"date", date2}};
+        decoder = new HPack();
+        checkDecode("C.5.1", decoder, "3fe101"
+                + "4803333032580770726976617465611d4d6f6e2c203231204f637420323031332032303a31333a323120474d54"
+                + "6e1768747470733a2f2f7777772e6578616d706c652e636f6d", response1, responseTable1, 222);
+        checkDecode("C.5.2", decoder, "4803333037c1c0bf", response2, responseTable2, 222);
+        checkDecode("C.5.3", decoder, "88c1611d4d6f6e2c203231204f637420323031332032303a31333a323220474d54c05a04677a6970"
+                + "7738666f6f3d4153444a4b48514b425a584f5157454f50495541585157454f49553b206d61782d6167653d333630303b"
+                + "2076657273696f6e3d31", response3, responseTable3, 215);
+
+        // C.6, the same responses with Huffman coding
+        String response1Block = "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d29ad171863c78f0b97c8e9ae82ae43d3";
+        String response2Block = "4883640effc1c0bf";
+        String response3Block = "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2e6c7b335dfdfcd5b"
+                + "3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007";
+        decoder = new HPack();
+        encoder = new HPack();
+        encoder.setMaxTableSize(256);
+        checkDecode("C.6.1", decoder, "3fe101" + response1Block, response1, responseTable1, 222);
+        checkEncode("C.6.1", encoder, response1, "3fe101" + response1Block);
+        checkDecode("C.6.2", decoder, response2Block, response2, responseTable2, 222);
+        // "307" is no shorter with Huffman coding, the encoder sends it raw where the RFC does not
+        checkEncode("C.6.2", encoder, response2, "4803333037c1c0bf");
+        checkDecode("C.6.3", decoder, response3Block, response3, responseTable3, 215);
+        checkEncode("C.6.3", encoder, response3, response3Block);
+
+        // An entry larger than the whole table empties it instead of being added
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 250; i++) {
+            large.append('x');
+        }
+        List<String[]> largeHeaders = decoder.decode(concat(hex("4001787f7b"), large.toString().getBytes()));
+        System.out.println("Oversized entry evicts all: " + (largeHeaders.get(0)[1].length() == 250
+                && decoder.getDynamicTable().isEmpty() && decoder.getDynamicTableSize() == 0));
+
+        // Huffman strings padded with more than 7 bits, with zero bits or holding EOS are rejected
+        checkRejected("Padding of 8 bits", "0481ff");
+        checkRejected("Padding with zero bits", "048118");
+        checkRejected("EOS symbol", "0484ffffffff");
+        System.out.println("Valid padding accepted: " + new HPack().decode(hex("04811f")).get(0)[1].equals("a"));
+
+        // Size updates are capped by our SETTINGS_HEADER_TABLE_SIZE and only allowed before the first field
+        checkRejected("Size update above 4096", "3fe21f");
+        checkRejected("Size update after a field", "8220");
+        System.out.println("Size update to 4096 accepted: " + new HPack().decode(hex("3fe11f82")).get(0)[1].equals("GET"));
+
+        // The encoder never grows its table past the default and announces the smallest size first
+        encoder = new HPack();
+        encoder.setMaxTableSize(65536);
+        System.out.println("Encoder size capped: " + toHex(encoder.encode(List.of(new String[][] {{":method", "GET"}}))).equals("82"));
+        encoder.setMaxTableSize(0);
+        encoder.setMaxTableSize(256);
+        System.out.println("Encoder size updates: " + toHex(encoder.encode(List.of(new String[][] {{":method", "GET"}}))).equals("203fe10182"));
+
+        // Unindexed names are written as literals without indexing and leave both tables as they were
+        encoder = new HPack();
+        decoder = new HPack();
+        List<String[]> trailers = List.of(new String[][] {{"grpc-status", "0"}, {"grpc-message", "Message of 5 bytes"}});
+        byte[] block = encoder.encode(trailers, Set.of("grpc-message"));
+        System.out.println("Unindexed field kept out of the table: " + (equal(decoder.decode(block), trailers.toArray(new String[0][]))
+                && encoder.getDynamicTableSize() == 44 && decoder.getDynamicTableSize() == 44));
+        System.out.println("Unindexed field sent again as a literal: "
+                + ((encoder.encode(trailers, Set.of("grpc-message"))[1] & 0xF0) == 0x00));
+    }
+
+    private static void checkDecode(String name, HPack hpack, String block, String[][] headers, String[][] table, int tableSize) throws Exception {
+        List<String[]> decoded = hpack.decode(hex(block));
+        System.out.println(name + " Headers Equal: " + equal(decoded, headers) + " Table Equal: "
+                + (equal(hpack.getDynamicTable(), table) && hpack.getDynamicTableSize() == tableSize));
+    }
+
+    private static void checkEncode(String name, HPack hpack, String[][] headers, String block) throws Exception {
+        System.out.println(name + " Encoded Bytes Equal: " + toHex(hpack.encode(List.of(headers))).equals(block));
+    }
+
+    private static void checkRejected(String name, String block) {
+        try {
+            new HPack().decode(hex(block));
+            System.out.println(name + " rejected: false");
+        } catch (Exception e) {
+            System.out.println(name + " rejected: true (" + e.getMessage() + ")");
+        }
+    }
+
+    private static boolean equal(List<String[]> actual, String[][] expected) {
+        if (actual.size() != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (!Arrays.equals(actual.get(i), expected[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
     }
 
 }
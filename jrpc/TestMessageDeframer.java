@@ -0,0 +1,99 @@
+package jrpc;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Feeds length prefixed messages to MessageDeframer cut into frames in different ways
+public class TestMessageDeframer {
+    private static final int MAX_MESSAGE_SIZE = GrpcConnection.MAX_MESSAGE_SIZE;
+
+    public static void main(String[] args) throws Exception {
+        byte[] small = message(3);
+        byte[] empty = message(0);
+        byte[] large = message(200 * 1024);
+
+        // The prefix arrives in pieces of 2 and 3 bytes, then the body
+        MessageDeframer deframer = new MessageDeframer(1, MAX_MESSAGE_SIZE);
+        List<byte[]> messages = new ArrayList<>();
+        feed(deframer, messages, Arrays.copyOfRange(small, 0, 2));
+        feed(deframer, messages, Arrays.copyOfRange(small, 2, 5));
+        boolean none = messages.isEmpty() && !deframer.isIdle();
+        feed(deframer, messages, Arrays.copyOfRange(small, 5, small.length));
+        System.out.println("Split prefix: " + (none && messages.size() == 1 && isBody(messages.get(0), small) && deframer.isIdle()));
+
+        // Several messages, an empty one among them, in one frame
+        deframer = new MessageDeframer(1, MAX_MESSAGE_SIZE);
+        messages.clear();
+        feed(deframer, messages, concat(small, empty, small));
+        System.out.println("Messages in one frame: " + (messages.size() == 3 && isBody(messages.get(0), small)
+                && messages.get(1).length == 0 && isBody(messages.get(2), small) && deframer.isIdle()));
+
+        // One message over frames of 1000 bytes, with the start of the next one in its last frame
+        deframer = new MessageDeframer(1, MAX_MESSAGE_SIZE);
+        messages.clear();
+        byte[] data = concat(large, Arrays.copyOfRange(small, 0, 4));
+        int frames = 0;
+        for (int offset = 0; offset < data.length; offset += 1000) {
+            feed(deframer, messages, Arrays.copyOfRange(data, offset, Math.min(data.length, offset + 1000)));
+            frames++;
+        }
+        System.out.println("Message over " + frames + " frames: " + (messages.size() == 1 && isBody(messages.get(0), large)));
+
+        // Data ends inside a message, the stream must not end like this
+        System.out.println("Partial message at end of stream: " + !deframer.isIdle());
+
+        // The size in the prefix is checked before anything is allocated for it
+        deframer = new MessageDeframer(1, MAX_MESSAGE_SIZE);
+        try {
+            deframer.read(ByteBuffer.wrap(new byte[] { 0, 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF }));
+            System.out.println("Over limit rejected: false");
+        } catch (Exception e) {
+            System.out.println("Over limit rejected: true (" + e.getMessage() + ")");
+        }
+
+        // Compressed messages are a protocol error
+        deframer = new MessageDeframer(1, MAX_MESSAGE_SIZE);
+        try {
+            deframer.read(ByteBuffer.wrap(new byte[] { 1, 0, 0, 0, 0 }));
+            System.out.println("Compressed rejected: false");
+        } catch (HTTP2.ProtocolException e) {
+            System.out.println("Compressed rejected: true (" + e.getMessage() + ")");
+        }
+    }
+
+    // Reads every message the frame completes, like GrpcConnection.onData
+    private static void feed(MessageDeframer deframer, List<byte[]> messages, byte[] frame) throws Exception {
+        ByteBuffer payload = ByteBuffer.wrap(frame);
+        while (payload.hasRemaining()) {
+            byte[] message = deframer.read(payload);
+            if (message == null) {
+                break;
+            }
+            messages.add(message);
+        }
+    }
+
+    private static byte[] message(int size) {
+        byte[] message = new byte[MessageDeframer.PREFIX_LENGTH + size];
+        ByteBuffer.wrap(message).put((byte) 0).putInt(size);
+        for (int i = 0; i < size; i++) {
+            message[MessageDeframer.PREFIX_LENGTH + i] = (byte) (i * 31);
+        }
+        return message;
+    }
+
+    private static boolean isBody(byte[] body, byte[] message) {
+        return Arrays.equals(body, Arrays.copyOfRange(message, MessageDeframer.PREFIX_LENGTH, message.length));
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
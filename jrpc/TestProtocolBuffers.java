@@ -3,6 +3,8 @@ package jrpc;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -29,7 +31,7 @@ public class TestProtocolBuffers {
 
             out.reset();
 
-            MessageObject userResponse = new MessageObject(pb, "UserRequest");
+            MessageObject userResponse = new MessageObject(pb, "UserResponse");
             userResponse.setField("id", 123);
             userResponse.setField("name", "John Doe");
 
@@ -39,8 +41,199 @@ public class TestProtocolBuffers {
             userResponse.setField("properties", userProperties);
             userResponse.serialize(out);
             Utils.printBytes("User Response Bytes: ", out.toByteArray());
+
+            // Repeated enums are packed like repeated scalars, both packed and unpacked records are read
+            MessageObject palette = new MessageObject(pb, "Palette");
+            palette.setField("colors", new Object[] { "GREEN", "BLUE", "RED" });
+            palette.setField("sizes", new int[] { 1, 300 });
+            byte[] packed = palette.toByteArray();
+            byte[] unpacked = { 0x08, 0x01, 0x08, 0x02, 0x08, 0x00, 0x10, 0x01, 0x10, (byte) 0xAC, 0x02 };
+            Utils.printBytes("Palette Bytes: ", packed);
+            printPalette(pb, packed);
+            printPalette(pb, unpacked);
+
+            // Large repeated fields, one record per element, accumulate into primitive arrays
+            byte[] samples = samplesBytes(100000);
+            checkSamples(pb, "Samples", samples, 100000);
+            checkNumbers(pb, "Numbers");
+            checkStrings(pb, "Strings");
+
+            // Compiled codecs must give the same bytes and values as the generic loops
+            if (pb.compileCodecs()) {
+                System.out.println("Compiled Palette Bytes Equal: " + Arrays.equals(palette.toByteArray(), packed));
+                printPalette(pb, packed);
+                printPalette(pb, unpacked);
+                checkSamples(pb, "Compiled Samples", samples, 100000);
+                checkNumbers(pb, "Compiled Numbers");
+                checkStrings(pb, "Compiled Strings");
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    // Element i of counts is i - count / 2 so negative int32 values take ten byte varints,
+    // element i of totals is i << 33
+    private static byte[] samplesBytes(int count) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            out.write(0x08);
+            writeVarint(out, i - count / 2);
+            out.write(0x10);
+            writeVarint(out, (long) i << 33);
+        }
+        return out.toByteArray();
+    }
+
+    private static void checkSamples(ProtocolBuffers pb, String label, byte[] bytes, int count) throws Exception {
+        MessageObject samples = new MessageObject(pb, "Samples", bytes, 0, bytes.length);
+        int[] counts = (int[]) samples.getField("counts");
+        long[] totals = (long[]) samples.getField("totals");
+        boolean equal = counts.length == count && totals.length == count;
+        for (int i = 0; equal && i < count; i++) {
+            equal = counts[i] == i - count / 2 && totals[i] == (long) i << 33;
+        }
+        System.out.println(label + ": " + counts.length + " counts, " + totals.length + " totals, values equal: " + equal);
+
+        // Written back packed, and read again from the packed form
+        byte[] packed = samples.toByteArray();
+        MessageObject reread = new MessageObject(pb, "Samples", packed, 0, packed.length);
+        System.out.println(label + " Packed Round Trip Equal: " + (packed.length < bytes.length
+                && Arrays.equals((int[]) reread.getField("counts"), counts) && Arrays.equals((long[]) reread.getField("totals"), totals)));
+    }
+
+    // Edge values of every numeric kind against their wire encoding, read back eagerly and lazily
+    private static void checkNumbers(ProtocolBuffers pb, String label) throws Exception {
+        MessageObject numbers = new MessageObject(pb, "Numbers");
+        numbers.setInt("zigzag32", Integer.MIN_VALUE);
+        numbers.setLong("zigzag64", Long.MIN_VALUE);
+        numbers.setInt("hash32", -1);
+        numbers.setLong("hash64", -1L);
+        numbers.setInt("offset32", Integer.MIN_VALUE);
+        numbers.setLong("offset64", Long.MIN_VALUE);
+        numbers.setInt("count32", -1);
+        numbers.setLong("count64", -1L);
+        numbers.setFloat("ratio", -1.5f);
+        numbers.setDouble("mean", Math.PI);
+        numbers.setField("deltas", new long[] { -1, 1, Long.MAX_VALUE });
+        numbers.setField("values", new double[] { 0.1, -0.0, Double.POSITIVE_INFINITY });
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(0x08);
+        writeVarint(expected, 0xFFFFFFFFL);
+        expected.write(0x10);
+        writeVarint(expected, -1L);
+        expected.write(0x1D);
+        writeFixed(expected, -1L, 4);
+        expected.write(0x21);
+        writeFixed(expected, -1L, 8);
+        expected.write(0x2D);
+        writeFixed(expected, Integer.MIN_VALUE, 4);
+        expected.write(0x31);
+        writeFixed(expected, Long.MIN_VALUE, 8);
+        // uint32 is not sign extended, uint64 takes all ten bytes
+        expected.write(0x38);
+        writeVarint(expected, 0xFFFFFFFFL);
+        expected.write(0x40);
+        writeVarint(expected, -1L);
+        expected.write(0x4D);
+        writeFixed(expected, Float.floatToRawIntBits(-1.5f), 4);
+        expected.write(0x51);
+        writeFixed(expected, Double.doubleToRawLongBits(Math.PI), 8);
+        expected.write(0x5A);
+        expected.write(12);
+        writeVarint(expected, 1);
+        writeVarint(expected, 2);
+        writeVarint(expected, -2L);
+        expected.write(0x62);
+        expected.write(24);
+        for (double value : new double[] { 0.1, -0.0, Double.POSITIVE_INFINITY }) {
+            writeFixed(expected, Double.doubleToRawLongBits(value), 8);
+        }
+        byte[] bytes = numbers.toByteArray();
+        System.out.println(label + " Bytes Equal: " + Arrays.equals(bytes, expected.toByteArray()));
+
+        MessageObject eager = new MessageObject(pb, "Numbers", bytes, 0, bytes.length);
+        MessageObject lazy = new MessageObject(pb, "Numbers", bytes, 0, bytes.length, true);
+        System.out.println(label + " Values Equal: " + numbersEqual(eager) + " Lazy: " + numbersEqual(lazy));
+    }
+
+    private static boolean numbersEqual(MessageObject numbers) {
+        return numbers.getInt("zigzag32") == Integer.MIN_VALUE
+                && numbers.getLong("zigzag64") == Long.MIN_VALUE
+                && numbers.getInt("hash32") == -1
+                && numbers.getLong("hash64") == -1L
+                && numbers.getInt("offset32") == Integer.MIN_VALUE
+                && numbers.getLong("offset64") == Long.MIN_VALUE
+                && numbers.getInt("count32") == -1
+                && numbers.getLong("count64") == -1L
+                && numbers.getFloat("ratio") == -1.5f
+                && numbers.getDouble("mean") == Math.PI
+                && Arrays.equals((long[]) numbers.getField("deltas"), new long[] { -1, 1, Long.MAX_VALUE })
+                && Arrays.equals((double[]) numbers.getField("values"), new double[] { 0.1, -0.0, Double.POSITIVE_INFINITY });
+    }
+
+    // Length prefixes count UTF-8 bytes, not chars, an unpaired surrogate is written as '?'
+    private static void checkStrings(ProtocolBuffers pb, String label) throws Exception {
+        String name = "Gr\u00FC\u00DFe \u65E5\u672C \uD83D\uDE00 a\uD800b " + "\u00E9".repeat(100);
+        String key = "\u043A\u043B\u044E\u0447";
+        String value = "\u503C";
+        MessageObject user = new MessageObject(pb, "UserResponse");
+        user.setField("id", 7);
+        user.setField("name", name);
+        user.setField("properties", Map.of(key, value));
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(0x08);
+        expected.write(7);
+        expected.write(0x12);
+        writeVarint(expected, nameBytes.length);
+        expected.writeBytes(nameBytes);
+        expected.write(0x1A);
+        writeVarint(expected, 4 + keyBytes.length + valueBytes.length);
+        expected.write(0x0A);
+        writeVarint(expected, keyBytes.length);
+        expected.writeBytes(keyBytes);
+        expected.write(0x12);
+        writeVarint(expected, valueBytes.length);
+        expected.writeBytes(valueBytes);
+        byte[] bytes = user.toByteArray();
+        System.out.println(label + " Bytes Equal: " + Arrays.equals(bytes, expected.toByteArray()));
+
+        String decodedName = new String(nameBytes, StandardCharsets.UTF_8);
+        MessageObject eager = new MessageObject(pb, "UserResponse", bytes, 0, bytes.length);
+        MessageObject lazy = new MessageObject(pb, "UserResponse", bytes, 0, bytes.length, true);
+        Utf8.setInterning(true);
+        MessageObject interned = new MessageObject(pb, "UserResponse", bytes, 0, bytes.length);
+        Utf8.setInterning(false);
+        System.out.println(label + " Values Equal: " + stringsEqual(eager, decodedName, key, value)
+                + " Lazy: " + stringsEqual(lazy, decodedName, key, value)
+                + " Interned: " + stringsEqual(interned, decodedName, key, value));
+    }
+
+    private static boolean stringsEqual(MessageObject user, String name, String key, String value) {
+        return user.getInt("id") == 7 && name.equals(user.getField("name")) && Map.of(key, value).equals(user.getField("properties"));
+    }
+
+    private static void writeFixed(ByteArrayOutputStream out, long bits, int size) {
+        for (int i = 0; i < size; i++) {
+            out.write((int) (bits >>> (i * 8)));
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void printPalette(ProtocolBuffers pb, byte[] bytes) throws Exception {
+        MessageObject palette = new MessageObject(pb, "Palette", bytes, 0, bytes.length);
+        System.out.println("Palette: " + Arrays.toString((Object[]) palette.getField("colors")) + " " + Arrays.toString((int[]) palette.getField("sizes")));
+    }
 }
@@ -0,0 +1,122 @@
+package jrpc;
+
+import java.nio.charset.StandardCharsets;
+
+// String codec for protobuf string fields, encodes straight into the output buffer. Unpaired
+// surrogates are written as '?' like String.getBytes does, so lengths and output always agree.
+public final class Utf8 {
+    // Strings up to this many bytes are looked up in the intern cache
+    private static final int MAX_INTERNED_LENGTH = 32;
+    private static final int INTERN_CACHE_SIZE = 1024;
+
+    // Direct mapped and racy on purpose, a lost update only costs a cache miss
+    private static final String[] internCache = new String[INTERN_CACHE_SIZE];
+    private static volatile boolean interning = false;
+
+    private Utf8() {
+    }
+
+    // Short ASCII strings such as map keys and identifiers are shared between decoded messages
+    // instead of being allocated for every request. The cache is global, this applies to every
+    // server and every message decoded in the process.
+    public static void setInterning(boolean enabled) {
+        interning = enabled;
+    }
+
+    static int encodedLength(String value) {
+        int length = value.length();
+        int i = 0;
+        while (i < length && value.charAt(i) < 0x80) {
+            i++;
+        }
+
+        int size = length;
+        for (; i < length; i++) {
+            char ch = value.charAt(i);
+            if (ch < 0x80) {
+                continue;
+            } else if (ch < 0x800) {
+                size += 1;
+            } else if (Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                // 4 bytes for 2 chars
+                size += 2;
+                i++;
+            } else if (!Character.isSurrogate(ch)) {
+                size += 2;
+            }
+        }
+        return size;
+    }
+
+    // Returns the offset after the encoded string, the buffer must have encodedLength bytes left
+    static int encode(String value, byte[] buffer, int offset) {
+        int length = value.length();
+        int i = 0;
+        for (char ch; i < length && (ch = value.charAt(i)) < 0x80; i++) {
+            buffer[offset++] = (byte) ch;
+        }
+
+        for (; i < length; i++) {
+            char ch = value.charAt(i);
+            if (ch < 0x80) {
+                buffer[offset++] = (byte) ch;
+            } else if (ch < 0x800) {
+                buffer[offset++] = (byte) (0xC0 | (ch >>> 6));
+                buffer[offset++] = (byte) (0x80 | (ch & 0x3F));
+            } else if (Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(ch, value.charAt(++i));
+                buffer[offset++] = (byte) (0xF0 | (codePoint >>> 18));
+                buffer[offset++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(ch)) {
+                buffer[offset++] = '?';
+            } else {
+                buffer[offset++] = (byte) (0xE0 | (ch >>> 12));
+                buffer[offset++] = (byte) (0x80 | ((ch >>> 6) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | (ch & 0x3F));
+            }
+        }
+        return offset;
+    }
+
+    static String decode(byte[] buffer, int offset, int length) {
+        int hash = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = buffer[i];
+            if (b < 0) {
+                return new String(buffer, offset, length, StandardCharsets.UTF_8);
+            }
+            hash = 31 * hash + b;
+        }
+
+        // ASCII only, Latin-1 decoding is a plain copy into the compact string
+        if (!interning || length > MAX_INTERNED_LENGTH) {
+            return new String(buffer, offset, length, StandardCharsets.ISO_8859_1);
+        }
+
+        // Same hash as String.hashCode, so cached entries are found without building the string
+        int index = (hash ^ (hash >>> 16)) & (INTERN_CACHE_SIZE - 1);
+        String cached = internCache[index];
+        if (cached != null && cached.hashCode() == hash && matches(cached, buffer, offset, length)) {
+            return cached;
+        }
+
+        String value = new String(buffer, offset, length, StandardCharsets.ISO_8859_1);
+        internCache[index] = value;
+        return value;
+    }
+
+    private static boolean matches(String value, byte[] buffer, int offset, int length) {
+        if (value.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) != buffer[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
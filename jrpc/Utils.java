@@ -1,5 +1,8 @@
 package jrpc;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
 public class Utils {
     public static void printBytes(String prefix, byte[] bytes) {
         System.out.println(prefix);
@@ -28,4 +31,14 @@ public class Utils {
         return res;
     }
 
+    // Copies the remaining bytes without moving the buffer position
+    public static void write(ByteArrayOutputStream out, ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(buffer.position(), bytes);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
 }
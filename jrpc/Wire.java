@@ -0,0 +1,182 @@
+package jrpc;
+
+import java.nio.ByteBuffer;
+
+// Protobuf wire format primitives, shared by MessageObject and the classes CodeGenerator emits.
+// Writers take the output array and offset and return the offset after what they wrote.
+public final class Wire {
+    private Wire() {
+    }
+
+    public static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static int varintSize(long value) {
+        return (63 - Long.numberOfLeadingZeros(value | 1)) / 7 + 1;
+    }
+
+    // Length prefix included
+    public static int stringSize(String value) {
+        int length = Utf8.encodedLength(value);
+        return varintSize(length) + length;
+    }
+
+    // Length prefix included, the size is kept by the message for writeMessage
+    public static int messageSize(ProtoMessage message) throws Exception {
+        int size = message.getSerializedSize();
+        return varintSize(size) + size;
+    }
+
+    public static int writeVarint(byte[] buffer, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    public static int writeFixed32(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >>> 8);
+        buffer[offset + 2] = (byte) (value >>> 16);
+        buffer[offset + 3] = (byte) (value >>> 24);
+        return offset + 4;
+    }
+
+    public static int writeFixed64(byte[] buffer, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            buffer[offset++] = (byte) value;
+            value >>>= 8;
+        }
+        return offset;
+    }
+
+    public static int writeString(byte[] buffer, int offset, String value) {
+        offset = writeVarint(buffer, offset, Utf8.encodedLength(value));
+        return Utf8.encode(value, buffer, offset);
+    }
+
+    public static int writeBytes(byte[] buffer, int offset, byte[] bytes) {
+        offset = writeVarint(buffer, offset, bytes.length);
+        System.arraycopy(bytes, 0, buffer, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
+    public static int writeBytes(byte[] buffer, int offset, ByteBuffer bytes) {
+        offset = writeVarint(buffer, offset, bytes.remaining());
+        bytes.get(bytes.position(), buffer, offset, bytes.remaining());
+        return offset + bytes.remaining();
+    }
+
+    public static int writeMessage(byte[] buffer, int offset, ProtoMessage message) throws Exception {
+        offset = writeVarint(buffer, offset, message.getSerializedSize());
+        return message.writeTo(buffer, offset);
+    }
+
+    // Cursor over the encoded bytes, nested messages are decoded by narrowing the limit
+    public static class Input {
+        final byte[] buffer;
+        int position;
+        int limit;
+
+        public Input(byte[] buffer, int position, int limit) {
+            this.buffer = buffer;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        public boolean isAtEnd() {
+            return position >= limit;
+        }
+
+        public long readVarint() throws Exception {
+            // Single byte values such as most tags and small numbers
+            int position = this.position;
+            if (position < limit && buffer[position] >= 0) {
+                this.position = position + 1;
+                return buffer[position];
+            }
+
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= limit) {
+                    throw new Exception("Unexpected end of input");
+                }
+                byte b = buffer[position++];
+                result |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    this.position = position;
+                    return result;
+                }
+            }
+            throw new Exception("Varint too long");
+        }
+
+        // Little endian, sign extended
+        public int readFixed32() throws Exception {
+            if (limit - position < 4) {
+                throw new Exception("Unexpected end of input");
+            }
+            int value = (buffer[position] & 0xFF)
+                    | (buffer[position + 1] & 0xFF) << 8
+                    | (buffer[position + 2] & 0xFF) << 16
+                    | (buffer[position + 3] & 0xFF) << 24;
+            position += 4;
+            return value;
+        }
+
+        public long readFixed64() throws Exception {
+            if (limit - position < 8) {
+                throw new Exception("Unexpected end of input");
+            }
+            long value = 0;
+            for (int i = 7; i >= 0; i--) {
+                value = (value << 8) | (buffer[position + i] & 0xFF);
+            }
+            position += 8;
+            return value;
+        }
+
+        // Length of a length delimited field, checked against the current limit
+        public int readLength() throws Exception {
+            long length = readVarint();
+            if (length < 0 || length > limit - position) {
+                throw new Exception("Unexpected end of input");
+            }
+            return (int) length;
+        }
+
+        public String readString() throws Exception {
+            int length = readLength();
+            String value = Utf8.decode(buffer, position, length);
+            position += length;
+            return value;
+        }
+
+        public byte[] readBytes() throws Exception {
+            int length = readLength();
+            byte[] value = new byte[length];
+            System.arraycopy(buffer, position, value, 0, length);
+            position += length;
+            return value;
+        }
+
+        // Narrows the input to a length delimited value, returns the limit to restore with popLimit
+        public int pushLimit() throws Exception {
+            int length = readLength();
+            int limit = this.limit;
+            this.limit = position + length;
+            return limit;
+        }
+
+        public void popLimit(int limit) {
+            this.limit = limit;
+        }
+    }
+}